@@ -0,0 +1,218 @@
+/*
+ * CachedIOAccess.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.fluidops.util.LRUCache;
+
+/**
+ * IO access decorator that caches aligned pages of the underlying device.
+ *
+ * Meant for meta data access: the driver reads regular file data from the
+ * device below the cache, and reads larger than a page bypass it as well,
+ * so streaming file data does not evict the cached meta data. Pages are
+ * kept on the Java heap or, optionally, in direct (off-heap) buffers.
+ *
+ * @author Uli
+ */
+public class CachedIOAccess extends IOAccess
+{
+    IOAccess io;
+    int pageSize;
+    boolean offHeap;
+    LRUCache<Long, Object> pages;
+
+    long pos;
+
+    /**
+     * Creates a new cache on top of the given IO access.
+     * @param io The device to cache
+     * @param pageSize Size of a cached page
+     * @param maxPages Max. amount of cached pages
+     * @param offHeap Keep pages in direct buffers instead of the heap
+     */
+    public CachedIOAccess( IOAccess io, int pageSize, int maxPages, boolean offHeap )
+    {
+        if ( pageSize<=0 || maxPages<=0 )
+            throw new IllegalArgumentException("Illegal cache size: pageSize="+pageSize+" pages="+maxPages);
+
+        this.io = io;
+        this.pageSize = pageSize;
+        this.offHeap = offHeap;
+        pages = new LRUCache<Long, Object>( maxPages );
+    }
+
+    /**
+     * Returns the page with the given number, reads it from the device
+     * if not cached. The page is either a byte[] or a ByteBuffer, its length
+     * is less than the page size at the end of the device.
+     * @param page
+     * @return
+     * @throws IOException
+     */
+    Object getPage( long page ) throws IOException
+    {
+        Object p = pages.get( page );
+        if ( p!=null )
+            return p;
+
+        // Read outside of the lock, a concurrent miss on the same page is harmless
+        byte[] data = new byte[ pageSize ];
+        long start = page * pageSize;
+        int len = 0;
+        while ( len<pageSize )
+        {
+            int res = io.read( start+len, data, len, pageSize-len );
+            if ( res<=0 )
+                break;
+            len += res;
+        }
+
+        if ( offHeap )
+        {
+            ByteBuffer bb = ByteBuffer.allocateDirect( len );
+            bb.put( data, 0, len );
+            bb.flip();
+            p = bb;
+        }
+        else if ( len<pageSize )
+        {
+            byte[] b = new byte[ len ];
+            System.arraycopy( data, 0, b, 0, len );
+            p = b;
+        }
+        else
+            p = data;
+
+        pages.put( page, p );
+        return p;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int size) throws IOException
+    {
+        int res = read( pos, buffer, offset, size );
+        if ( res>0 )
+            pos += res;
+        return res;
+    }
+
+    @Override
+    public int read(long pos, byte[] buffer, int offset, int size) throws IOException
+    {
+        if ( size>pageSize || buffer==null )
+            return io.read( pos, buffer, offset, size );
+
+        int done = 0;
+        while ( done<size )
+        {
+            long p = pos + done;
+            int posInPage = (int)(p % pageSize);
+            Object page = getPage( p / pageSize );
+
+            int len = page instanceof ByteBuffer ? ((ByteBuffer)page).limit() : ((byte[])page).length;
+            int now = Math.min( size-done, len-posInPage );
+            if ( now<=0 )
+                break;
+
+            if ( page instanceof ByteBuffer )
+            {
+                ByteBuffer bb = ((ByteBuffer)page).duplicate();
+                bb.position( posInPage );
+                bb.get( buffer, offset+done, now );
+            }
+            else
+                System.arraycopy( (byte[])page, posInPage, buffer, offset+done, now );
+
+            done += now;
+            if ( len<pageSize )
+                // End of device
+                break;
+        }
+        return done==0 && size>0 ? -1 : done;
+    }
+
+    @Override
+    public int read(long pos, ByteBuffer dst) throws IOException
+    {
+        if ( dst.remaining()>pageSize )
+            return io.read( pos, dst );
+        return super.read( pos, dst );
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int size) throws IOException
+    {
+        write( pos, buffer, offset, size );
+        pos += size;
+    }
+
+    @Override
+    public void write(long pos, byte[] buffer, int offset, int size) throws IOException
+    {
+        for ( long p=pos/pageSize; p<=(pos+size-1)/pageSize; p++ )
+            pages.remove( p );
+        io.write( pos, buffer, offset, size );
+    }
+
+    @Override
+    public long getPosition()
+    {
+        return pos;
+    }
+
+    @Override
+    public void setPosition(long pos)
+    {
+        this.pos = pos;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return io.getSize();
+    }
+
+    @Override
+    public void setSize(long newSize)
+    {
+        pages.clear();
+        io.setSize( newSize );
+    }
+
+    @Override
+    public void close()
+    {
+        pages.clear();
+        io.close();
+    }
+
+    public long getHits()
+    {
+        return pages.getHits();
+    }
+
+    public long getMisses()
+    {
+        return pages.getMisses();
+    }
+
+    public long getEvictions()
+    {
+        return pages.getEvictions();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CachedIOAccess pageSize="+pageSize+" offHeap="+offHeap+" "+pages+" on "+io;
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ * DDReader.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.fluidops.util.logging.Log;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+/**
+ * Reads a remote file with dd for hosts without SFTP.
+ *
+ * A single shell session runs a loop that reads "skip count" requests
+ * from stdin and answers each with the output of dd, so a read does not
+ * start a new session and process. Requests are widened to whole blocks
+ * of a large block size, the unaligned head and tail are dropped locally.
+ *
+ * The size of the file is not used, block devices report none. Instead
+ * dd writes to a temporary file on the remote side, and each response
+ * starts with two header lines holding the length of the dd output and
+ * the exit status of dd. A short response marks the end of the file. A
+ * dd failing without output past the start of the file reads as end of
+ * file as well, dd cannot skip beyond the end of a device. Responses
+ * are limited to {@link #MAX_RESPONSE_SIZE} since ESX keeps the temporary
+ * file in memory.
+ *
+ * Optionally each response is compressed with gzip on the remote side,
+ * which pays off for mostly zero data like thin disks or unused meta
+ * data regions. Every response is a gzip member of its own following the
+ * header, inflated without reading beyond its trailer.
+ *
+ * @author Uli
+ */
+public class DDReader
+{
+    public static final int DEFAULT_BLOCK_SIZE = 65536;
+    public static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    Session session;
+    InputStream in;
+    OutputStream out;
+    String path;
+    int blockSize;
+    long maxCount;
+    boolean compress;
+    byte[] skipBuffer;
+
+    // Compressed responses: input of the inflater, inPos..inLimit not yet consumed
+    Inflater inflater;
+    CRC32 crc;
+    byte[] inBuf;
+    int inPos, inLimit;
+    long inflated;
+
+    // Statistics
+    long dataBytes, wireBytes;
+
+    /**
+     * Starts the dd loop on a new session of the connection.
+     * @param c The SSH connection
+     * @param path Remote file
+     * @param blockSize dd block size
+     * @param compress Compress the data on the remote side
+     * @throws IOException
+     */
+    public DDReader( Connection c, String path, int blockSize, boolean compress ) throws IOException
+    {
+        Session s = c.openSession();
+        try
+        {
+            s.execCommand( command( path, blockSize, compress ) );
+            init( s.getStdout(), s.getStdin(), path, blockSize, compress );
+        }
+        catch (IOException ex)
+        {
+            s.close();
+            throw ex;
+        }
+        session = s;
+    }
+
+    /**
+     * Reads from an established dd loop.
+     */
+    DDReader( InputStream in, OutputStream out, String path, int blockSize, boolean compress )
+    {
+        init( in, out, path, blockSize, compress );
+    }
+
+    void init( InputStream in, OutputStream out, String path, int blockSize, boolean compress )
+    {
+        if ( blockSize<=0 )
+            throw new IllegalArgumentException("Illegal block size: "+blockSize);
+
+        this.in = new BufferedInputStream( in, Math.max( blockSize, 65536 ) );
+        this.out = out;
+        this.path = path;
+        this.blockSize = blockSize;
+        maxCount = Math.max( 1, MAX_RESPONSE_SIZE/blockSize );
+        this.compress = compress;
+        if ( compress )
+        {
+            inflater = new Inflater( true );
+            crc = new CRC32();
+            inBuf = new byte[ 65536 ];
+        }
+    }
+
+    /**
+     * Returns the remote shell command running the dd loop. The dd
+     * statistics on stderr are discarded, they would fill the channel.
+     * The temporary file is removed when the loop ends, also on a hangup.
+     */
+    static String command( String path, int blockSize, boolean compress )
+    {
+        String script = "t=$(mktemp /tmp/ddreader.XXXXXX) || exit 1; "
+            + "trap 'rm -f \"$t\"' 0; trap 'exit 1' 1 2 13 15; "
+            + "while read skip count; do "
+            + "dd if="+quote( path )+" bs="+blockSize+" skip=$skip count=$count 2>/dev/null >\"$t\"; "
+            + "s=$?; wc -c < \"$t\" || exit 1; echo $s || exit 1; "
+            + (compress ? "gzip -1 < \"$t\"" : "cat \"$t\"")
+            + " || exit 1; done";
+        return "sh -c "+quote( script );
+    }
+
+    /**
+     * Quotes a string for the shell, no character in it is special.
+     */
+    static String quote( String s )
+    {
+        return "'"+s.replace( "'", "'\\''" )+"'";
+    }
+
+    /**
+     * Positional read, requests are serialized on this instance. Large
+     * reads are split into several requests.
+     *
+     * @return Amount of bytes read, or -1 at end of file
+     * @throws IOException
+     */
+    public synchronized int read( long pos, byte[] buffer, int offset, int len ) throws IOException
+    {
+        if ( len<=0 )
+            return 0;
+
+        int done = 0;
+        while ( done<len )
+        {
+            // Each request returns at most maxCount blocks
+            long p = pos+done;
+            int now = (int)Math.min( len-done, maxCount*blockSize - p%blockSize );
+            int res = request( p, buffer, offset+done, now );
+            done += res;
+            if ( res<now )
+                // End of file
+                break;
+        }
+
+        Log.debug( "SSH: dd read {} @{x}", done, pos );
+        return done==0 ? -1 : done;
+    }
+
+    /**
+     * Sends a single request and reads its response.
+     * @return Amount of bytes read, less than len at end of file
+     */
+    int request( long pos, byte[] buffer, int offset, int len ) throws IOException
+    {
+        long skip = pos / blockSize;
+        long start = skip*blockSize;
+        long count = (pos+len-start+blockSize-1) / blockSize;
+
+        out.write( (skip+" "+count+"\n").getBytes( "US-ASCII" ) );
+        out.flush();
+
+        // dd stops at the end of the file, the header tells how far it got
+        long length = readHeader();
+        long status = readHeader();
+        if ( length>count*blockSize )
+            throw new IOException("dd reader of "+path+": unexpected response length "+length);
+        if ( status!=0 )
+        {
+            Log.debug( "SSH: dd of {} exited with {} after {} bytes", path, status, length );
+            if ( length==0 && skip==0 )
+                throw new IOException("dd reader of "+path+": dd failed with status "+status);
+        }
+
+        long head = Math.min( pos-start, length );
+        int res = (int)Math.min( len, length-head );
+
+        if ( compress )
+            startMember();
+        discard( head );
+        readFully( buffer, offset, res );
+        discard( length-head-res );
+        if ( compress )
+            endMember();
+        dataBytes += length;
+        return res;
+    }
+
+    /**
+     * Reads a header line of a response, a non-negative number.
+     */
+    long readHeader() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (;;)
+        {
+            int b;
+            if ( compress )
+                b = readByte();
+            else
+            {
+                b = in.read();
+                if ( b<0 )
+                    throw new EOFException("dd reader of "+path+" terminated");
+                wireBytes++;
+            }
+            if ( b=='\n' )
+                break;
+            if ( sb.length()>=64 )
+                throw new IOException("dd reader of "+path+": malformed response header: "+sb);
+            sb.append( (char)b );
+        }
+        try
+        {
+            long v = Long.parseLong( sb.toString().trim() );
+            if ( v>=0 )
+                return v;
+        }
+        catch (NumberFormatException e)
+        {
+            // Reported below
+        }
+        throw new IOException("dd reader of "+path+": malformed response header: "+sb);
+    }
+
+    void readFully( byte[] buffer, int offset, int len ) throws IOException
+    {
+        while ( len>0 )
+        {
+            int res = compress ? inflate( buffer, offset, len ) : in.read( buffer, offset, len );
+            if ( res<0 )
+                throw new EOFException("dd reader of "+path+" terminated");
+            if ( !compress )
+                wireBytes += res;
+            offset += res;
+            len -= res;
+        }
+    }
+
+    /**
+     * Reads a byte of a compressed response, outside of the deflate data.
+     */
+    int readByte() throws IOException
+    {
+        if ( inPos==inLimit )
+            fill();
+        return inBuf[inPos++] & 0xff;
+    }
+
+    void fill() throws IOException
+    {
+        int res = in.read( inBuf, 0, inBuf.length );
+        if ( res<0 )
+            throw new EOFException("dd reader of "+path+" terminated");
+        wireBytes += res;
+        inPos = 0;
+        inLimit = res;
+    }
+
+    int readIntLE() throws IOException
+    {
+        return readByte() | readByte()<<8 | readByte()<<16 | readByte()<<24;
+    }
+
+    /**
+     * Reads the gzip header of a response and prepares the inflater.
+     */
+    void startMember() throws IOException
+    {
+        if ( readByte()!=0x1f || readByte()!=0x8b || readByte()!=8 )
+            throw new IOException("dd reader of "+path+": response is not gzip data");
+        int flags = readByte();
+        for ( int i=0; i<6; i++ )
+            readByte(); // mtime, xfl, os
+        if ( (flags & 4)!=0 )
+        {
+            // FEXTRA
+            int len = readByte() | readByte()<<8;
+            for ( int i=0; i<len; i++ )
+                readByte();
+        }
+        if ( (flags & 8)!=0 )
+            while ( readByte()!=0 ); // FNAME
+        if ( (flags & 16)!=0 )
+            while ( readByte()!=0 ); // FCOMMENT
+        if ( (flags & 2)!=0 )
+        {
+            // FHCRC
+            readByte();
+            readByte();
+        }
+
+        inflater.reset();
+        crc.reset();
+        inflated = 0;
+        inflater.setInput( inBuf, inPos, inLimit-inPos );
+        inPos = inLimit;
+    }
+
+    /**
+     * Inflates data of the current response.
+     * @return Amount of bytes inflated, or -1 at the end of the response
+     */
+    int inflate( byte[] buffer, int offset, int len ) throws IOException
+    {
+        try
+        {
+            for (;;)
+            {
+                if ( inflater.finished() )
+                    return -1;
+                int res = inflater.inflate( buffer, offset, len );
+                if ( res>0 )
+                {
+                    crc.update( buffer, offset, res );
+                    inflated += res;
+                    return res;
+                }
+                if ( inflater.finished() )
+                    return -1;
+                if ( inflater.needsDictionary() )
+                    throw new IOException("dd reader of "+path+": corrupt gzip data");
+                if ( inflater.needsInput() )
+                {
+                    fill();
+                    inflater.setInput( inBuf, 0, inLimit );
+                    inPos = inLimit;
+                }
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("dd reader of "+path+": corrupt gzip data: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Verifies that the response ends with the expected data and reads
+     * the gzip trailer.
+     */
+    void endMember() throws IOException
+    {
+        byte[] b = new byte[ 1 ];
+        if ( inflate( b, 0, 1 )>=0 )
+            throw new IOException("dd reader of "+path+": response longer than expected");
+
+        // Bytes not used by the inflater belong to the trailer
+        inPos = inLimit-inflater.getRemaining();
+        int sum = readIntLE();
+        int len = readIntLE();
+        if ( sum!=(int)crc.getValue() || len!=(int)inflated )
+            throw new IOException("dd reader of "+path+": gzip checksum mismatch");
+    }
+
+    void discard( long len ) throws IOException
+    {
+        if ( len<=0 )
+            return;
+        if ( skipBuffer==null )
+            skipBuffer = new byte[ blockSize ];
+        while ( len>0 )
+        {
+            int now = (int)Math.min( len, skipBuffer.length );
+            readFully( skipBuffer, 0, now );
+            len -= now;
+        }
+    }
+
+    /**
+     * Ends the dd loop and closes the session.
+     */
+    public synchronized void close()
+    {
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            Log.debug( "SSH: closing dd reader failed: {}", e );
+        }
+        if ( session!=null )
+            session.close();
+    }
+
+    /**
+     * Returns the amount of data read and the amount received over the
+     * network.
+     */
+    public synchronized String getStatistics()
+    {
+        return "data="+dataBytes+" received="+wireBytes
+            +" ratio="+(wireBytes==0 ? "-" : String.format( "%.2f", (double)dataBytes/wireBytes ));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DDReader "+path+" blockSize="+blockSize+" compress="+compress+" "+getStatistics();
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * DecoderGenerator.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fluidops.tools.vmfs.NativeStruct.FieldInfo;
+import com.fluidops.util.logging.Log;
+
+/**
+ * Generates the decoder of a {@link NativeStruct} as a class file, so the
+ * fields are stored with plain putfield instructions instead of the
+ * reflective setters of {@link java.lang.reflect.Field}.
+ *
+ * The code of the decoder is straight-line, one load and store per field,
+ * so a class file of version 49 (Java 5) without stack map frames does.
+ * The class is defined by its own class loader below the loader of the
+ * struct type, i.e. in another runtime package: the struct type, the
+ * types of its sub-structs and the fields must be public, and the fields
+ * must not be final. Otherwise no decoder is generated and the struct is
+ * decoded by reflection.
+ *
+ * @author Uli
+ */
+final class DecoderGenerator
+{
+    static final String NATIVE_STRUCT = "com/fluidops/tools/vmfs/NativeStruct";
+    static final String DECODER = NATIVE_STRUCT+"$Decoder";
+
+    static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int CONSTANT_UTF8 = 1;
+    static final int CONSTANT_INTEGER = 3;
+    static final int CONSTANT_CLASS = 7;
+    static final int CONSTANT_FIELDREF = 9;
+    static final int CONSTANT_METHODREF = 10;
+    static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD_3 = 0x1d;
+    static final int ALOAD = 0x19;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int ALOAD_2 = 0x2c;
+    static final int BALOAD = 0x33;
+    static final int ASTORE = 0x3a;
+    static final int IADD = 0x60;
+    static final int RETURN = 0xb1;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int CHECKCAST = 0xc0;
+
+    /**
+     * Local variable holding the object cast to the struct type
+     */
+    static final int LOCAL_STRUCT = 4;
+
+    ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    DataOutputStream pool = new DataOutputStream( poolBytes );
+    Map<String, Integer> constants = new HashMap<String, Integer>();
+    int poolCount = 1;
+
+    /**
+     * Loader of a single generated decoder.
+     */
+    static class DecoderLoader extends ClassLoader
+    {
+        DecoderLoader( ClassLoader parent )
+        {
+            super( parent );
+        }
+
+        Class<?> define( String name, byte[] b )
+        {
+            return defineClass( name, b, 0, b.length );
+        }
+    }
+
+    /**
+     * Returns a generated decoder for the struct.
+     * @param ns
+     * @return The decoder, or null if the struct has to be decoded by reflection
+     */
+    static NativeStruct.Decoder generate( NativeStruct ns )
+    {
+        if ( !isAccessible( ns ) )
+        {
+            Log.debug( "NativeStruct: {} is decoded by reflection", ns.type );
+            return null;
+        }
+
+        try
+        {
+            String name = ns.type.getName()+"$$Decoder";
+            byte[] b = new DecoderGenerator().classFile( ns, name.replace( '.', '/' ) );
+            Class<?> c = new DecoderLoader( ns.type.getClassLoader() ).define( name, b );
+            return (NativeStruct.Decoder)c.newInstance();
+        }
+        catch (Throwable t)
+        {
+            // E.g. the loader of the type does not see NativeStruct
+            Log.debug( "NativeStruct: no decoder generated for {}: {}", ns.type, t );
+            return null;
+        }
+    }
+
+    /**
+     * Checks that the generated code may access the struct and its fields.
+     */
+    static boolean isAccessible( NativeStruct ns )
+    {
+        if ( !Modifier.isPublic( ns.type.getModifiers() ) )
+            return false;
+        for ( FieldInfo fi : ns.fieldArray )
+        {
+            int m = fi.field.getModifiers();
+            if ( Modifier.isFinal( m ) || Modifier.isStatic( m ) )
+                return false;
+            if ( fi.kind==NativeStruct.KIND_STRUCT && !Modifier.isPublic( fi.field.getType().getModifiers() ) )
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the class file of the decoder, a subclass of
+     * {@link NativeStruct.Decoder}.
+     * @param ns
+     * @param name Internal name of the decoder class
+     * @return
+     * @throws IOException
+     */
+    byte[] classFile( NativeStruct ns, String name ) throws IOException
+    {
+        int thisClass = classRef( name );
+        int superClass = classRef( DECODER );
+        int codeName = utf8( "Code" );
+        int initName = utf8( "<init>" );
+        int initDesc = utf8( "()V" );
+        int superInit = methodRef( DECODER, "<init>", "()V" );
+        int decodeName = utf8( "decode" );
+        int decodeDesc = utf8( "(Ljava/lang/Object;[BI)V" );
+
+        ByteArrayOutputStream initCode = new ByteArrayOutputStream();
+        initCode.write( ALOAD_0 );
+        initCode.write( INVOKESPECIAL );
+        initCode.write( superInit>>8 );
+        initCode.write( superInit );
+        initCode.write( RETURN );
+
+        byte[] decodeCode = decodeCode( ns );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( 0xcafebabe );
+        out.writeShort( 0 );
+        out.writeShort( VERSION );
+        out.writeShort( poolCount );
+        pool.flush();
+        poolBytes.writeTo( out );
+        out.writeShort( ACC_PUBLIC | ACC_FINAL | ACC_SUPER );
+        out.writeShort( thisClass );
+        out.writeShort( superClass );
+        out.writeShort( 0 ); // interfaces
+        out.writeShort( 0 ); // fields
+        out.writeShort( 2 ); // methods
+        method( out, initName, initDesc, codeName, 1, 1, initCode.toByteArray() );
+        method( out, decodeName, decodeDesc, codeName, 6, LOCAL_STRUCT+1, decodeCode );
+        out.writeShort( 0 ); // attributes
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the code of decode(Object obj, byte[] buffer, int offset).
+     */
+    byte[] decodeCode( NativeStruct ns ) throws IOException
+    {
+        String owner = internalName( ns.type );
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream code = new DataOutputStream( bytes );
+
+        code.writeByte( ALOAD_1 );
+        code.writeByte( CHECKCAST );
+        code.writeShort( classRef( owner ) );
+        code.writeByte( ASTORE );
+        code.writeByte( LOCAL_STRUCT );
+
+        for ( FieldInfo fi : ns.fieldArray )
+        {
+            Class<?> t = fi.field.getType();
+            code.writeByte( ALOAD );
+            code.writeByte( LOCAL_STRUCT );
+            switch ( fi.kind )
+            {
+                case NativeStruct.KIND_BYTE:
+                    position( code, fi.pos );
+                    code.writeByte( BALOAD );
+                    break;
+                case NativeStruct.KIND_SHORT:
+                    position( code, fi.pos );
+                    invokeStatic( code, NATIVE_STRUCT, "getShort", "([BI)S" );
+                    break;
+                case NativeStruct.KIND_INT:
+                    position( code, fi.pos );
+                    invokeStatic( code, NATIVE_STRUCT, "getInt", "([BI)I" );
+                    break;
+                case NativeStruct.KIND_LONG:
+                    position( code, fi.pos );
+                    invokeStatic( code, NATIVE_STRUCT, "getLong", "([BI)J" );
+                    break;
+                case NativeStruct.KIND_FLOAT:
+                    position( code, fi.pos );
+                    invokeStatic( code, NATIVE_STRUCT, "getInt", "([BI)I" );
+                    invokeStatic( code, "java/lang/Float", "intBitsToFloat", "(I)F" );
+                    break;
+                case NativeStruct.KIND_DOUBLE:
+                    position( code, fi.pos );
+                    invokeStatic( code, NATIVE_STRUCT, "getLong", "([BI)J" );
+                    invokeStatic( code, "java/lang/Double", "longBitsToDouble", "(J)D" );
+                    break;
+                case NativeStruct.KIND_BYTES:
+                    position( code, fi.pos );
+                    pushInt( code, fi.size );
+                    invokeStatic( code, NATIVE_STRUCT, "getBytes", "([BII)[B" );
+                    break;
+                case NativeStruct.KIND_STRING:
+                    position( code, fi.pos );
+                    pushInt( code, fi.size );
+                    invokeStatic( code, NATIVE_STRUCT, "getString", "([BII)Ljava/lang/String;" );
+                    break;
+                default:
+                {
+                    // A compound sub-struct
+                    int c = classRef( internalName( t ) );
+                    code.writeByte( LDC_W );
+                    code.writeShort( c );
+                    position( code, fi.pos );
+                    invokeStatic( code, NATIVE_STRUCT, "decodeNew", "(Ljava/lang/Class;[BI)Ljava/lang/Object;" );
+                    code.writeByte( CHECKCAST );
+                    code.writeShort( c );
+                }
+            }
+            code.writeByte( PUTFIELD );
+            code.writeShort( fieldRef( owner, fi.field.getName(), descriptor( t ) ) );
+        }
+        code.writeByte( RETURN );
+        code.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Pushes buffer and offset+pos.
+     */
+    void position( DataOutputStream code, int pos ) throws IOException
+    {
+        code.writeByte( ALOAD_2 );
+        code.writeByte( ILOAD_3 );
+        if ( pos!=0 )
+        {
+            pushInt( code, pos );
+            code.writeByte( IADD );
+        }
+    }
+
+    void pushInt( DataOutputStream code, int v ) throws IOException
+    {
+        if ( v>=-1 && v<=5 )
+            code.writeByte( ICONST_0+v );
+        else if ( v>=Byte.MIN_VALUE && v<=Byte.MAX_VALUE )
+        {
+            code.writeByte( BIPUSH );
+            code.writeByte( v );
+        }
+        else if ( v>=Short.MIN_VALUE && v<=Short.MAX_VALUE )
+        {
+            code.writeByte( SIPUSH );
+            code.writeShort( v );
+        }
+        else
+        {
+            code.writeByte( LDC_W );
+            code.writeShort( integer( v ) );
+        }
+    }
+
+    void invokeStatic( DataOutputStream code, String owner, String name, String desc ) throws IOException
+    {
+        code.writeByte( INVOKESTATIC );
+        code.writeShort( methodRef( owner, name, desc ) );
+    }
+
+    static void method( DataOutputStream out, int name, int desc, int codeName, int maxStack, int maxLocals, byte[] code )
+        throws IOException
+    {
+        out.writeShort( ACC_PUBLIC );
+        out.writeShort( name );
+        out.writeShort( desc );
+        out.writeShort( 1 ); // attributes
+        out.writeShort( codeName );
+        out.writeInt( 12+code.length );
+        out.writeShort( maxStack );
+        out.writeShort( maxLocals );
+        out.writeInt( code.length );
+        out.write( code );
+        out.writeShort( 0 ); // exception table
+        out.writeShort( 0 ); // attributes
+    }
+
+    static String internalName( Class<?> c )
+    {
+        return c.isArray() ? descriptor( c ) : c.getName().replace( '.', '/' );
+    }
+
+    static String descriptor( Class<?> c )
+    {
+        if ( c==byte.class ) return "B";
+        if ( c==short.class ) return "S";
+        if ( c==int.class ) return "I";
+        if ( c==long.class ) return "J";
+        if ( c==float.class ) return "F";
+        if ( c==double.class ) return "D";
+        if ( c.isArray() ) return c.getName().replace( '.', '/' );
+        return "L"+internalName( c )+";";
+    }
+
+    /**
+     * Returns the index of the constant with the given key, or 0 if it
+     * is not yet in the pool.
+     */
+    int lookup( String key )
+    {
+        Integer i = constants.get( key );
+        return i!=null ? i : 0;
+    }
+
+    int add( String key )
+    {
+        int i = poolCount++;
+        constants.put( key, i );
+        return i;
+    }
+
+    int utf8( String s ) throws IOException
+    {
+        String key = "Utf8 "+s;
+        int i = lookup( key );
+        if ( i!=0 )
+            return i;
+        pool.writeByte( CONSTANT_UTF8 );
+        pool.writeUTF( s );
+        return add( key );
+    }
+
+    int integer( int v ) throws IOException
+    {
+        String key = "Integer "+v;
+        int i = lookup( key );
+        if ( i!=0 )
+            return i;
+        pool.writeByte( CONSTANT_INTEGER );
+        pool.writeInt( v );
+        return add( key );
+    }
+
+    int classRef( String name ) throws IOException
+    {
+        String key = "Class "+name;
+        int i = lookup( key );
+        if ( i!=0 )
+            return i;
+        int n = utf8( name );
+        pool.writeByte( CONSTANT_CLASS );
+        pool.writeShort( n );
+        return add( key );
+    }
+
+    int nameAndType( String name, String desc ) throws IOException
+    {
+        String key = "NameAndType "+name+" "+desc;
+        int i = lookup( key );
+        if ( i!=0 )
+            return i;
+        int n = utf8( name );
+        int d = utf8( desc );
+        pool.writeByte( CONSTANT_NAME_AND_TYPE );
+        pool.writeShort( n );
+        pool.writeShort( d );
+        return add( key );
+    }
+
+    int fieldRef( String owner, String name, String desc ) throws IOException
+    {
+        return memberRef( CONSTANT_FIELDREF, owner, name, desc );
+    }
+
+    int methodRef( String owner, String name, String desc ) throws IOException
+    {
+        return memberRef( CONSTANT_METHODREF, owner, name, desc );
+    }
+
+    int memberRef( int tag, String owner, String name, String desc ) throws IOException
+    {
+        String key = tag+" "+owner+" "+name+" "+desc;
+        int i = lookup( key );
+        if ( i!=0 )
+            return i;
+        int c = classRef( owner );
+        int nt = nameAndType( name, desc );
+        pool.writeByte( tag );
+        pool.writeShort( c );
+        pool.writeShort( nt );
+        return add( key );
+    }
+}
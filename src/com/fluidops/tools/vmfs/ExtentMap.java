@@ -0,0 +1,184 @@
+/*
+ * ExtentMap.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.util.Arrays;
+
+/**
+ * Run-length map from logical file offsets to device offsets.
+ *
+ * Adjacent blocks of the same kind that are also physically contiguous
+ * are merged into a single extent, so a thick disk maps to a handful of
+ * extents and a thin disk to one extent per allocated run. Lookup of an
+ * offset is a binary search over the extent start offsets.
+ *
+ * Extents are appended in logical order, the map is immutable once
+ * shared between readers.
+ *
+ * @author Uli
+ */
+public class ExtentMap
+{
+    /**
+     * Unallocated range, reads as zero
+     */
+    public static final int KIND_SPARSE = 0;
+
+    /**
+     * Range in full file blocks
+     */
+    public static final int KIND_FULL = 1;
+
+    /**
+     * Range in a sub block, never merged with other extents
+     */
+    public static final int KIND_SUB = 2;
+
+    // start[i] is the logical start of extent i, start[count] its end
+    long[] start;
+    long[] physical;
+    byte[] kind;
+    int count;
+
+    public ExtentMap()
+    {
+        this( 0 );
+    }
+
+    /**
+     * Creates an empty map starting at the given logical offset.
+     * @param base
+     */
+    public ExtentMap( long base )
+    {
+        start = new long[ 17 ];
+        physical = new long[ 16 ];
+        kind = new byte[ 16 ];
+        start[0] = base;
+    }
+
+    /**
+     * Appends a range at the logical end of the map, merges it into the
+     * last extent if it continues it physically.
+     * @param k Kind of the range
+     * @param phys Device offset, ignored for sparse ranges
+     * @param length Length of the range
+     */
+    public void add( int k, long phys, long length )
+    {
+        if ( length<=0 )
+            return;
+
+        if ( count>0 && kind[count-1]==k && k!=KIND_SUB )
+        {
+            int last = count-1;
+            if ( k==KIND_SPARSE || physical[last] + (start[count]-start[last])==phys )
+            {
+                start[count] += length;
+                return;
+            }
+        }
+
+        if ( count==kind.length )
+        {
+            start = Arrays.copyOf( start, 2*count+1 );
+            physical = Arrays.copyOf( physical, 2*count );
+            kind = Arrays.copyOf( kind, 2*count );
+        }
+
+        physical[count] = k==KIND_SPARSE ? -1 : phys;
+        kind[count] = (byte)k;
+        start[count+1] = start[count] + length;
+        count++;
+    }
+
+    /**
+     * Releases the unused capacity once the map is complete.
+     */
+    public void trim()
+    {
+        start = Arrays.copyOf( start, count+1 );
+        physical = Arrays.copyOf( physical, count );
+        kind = Arrays.copyOf( kind, count );
+    }
+
+    /**
+     * Returns the index of the extent containing the logical offset,
+     * or -1 if the offset lies beyond the map.
+     * @param pos
+     * @return
+     */
+    public int find( long pos )
+    {
+        if ( pos<start[0] || pos>=start[count] )
+            return -1;
+
+        int lo = 0, hi = count-1;
+        while ( lo<hi )
+        {
+            int mid = (lo+hi+1) >>> 1;
+            if ( start[mid]<=pos )
+                lo = mid;
+            else
+                hi = mid-1;
+        }
+        return lo;
+    }
+
+    public int getCount()
+    {
+        return count;
+    }
+
+    public long getStart( int i )
+    {
+        return start[i];
+    }
+
+    public long getEnd( int i )
+    {
+        return start[i+1];
+    }
+
+    public long getLength( int i )
+    {
+        return start[i+1]-start[i];
+    }
+
+    public long getPhysical( int i )
+    {
+        return physical[i];
+    }
+
+    public int getKind( int i )
+    {
+        return kind[i];
+    }
+
+    /**
+     * Returns the logical end of the map.
+     */
+    public long getSize()
+    {
+        return start[count];
+    }
+
+    /**
+     * Returns the estimated memory usage in bytes.
+     */
+    public long getEstimatedSize()
+    {
+        return 64 + 8L*start.length + 8L*physical.length + kind.length;
+    }
+
+    public String toString()
+    {
+        return "ExtentMap extents="+count+" size="+getSize();
+    }
+}
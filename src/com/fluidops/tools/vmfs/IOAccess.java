@@ -10,6 +10,7 @@ package com.fluidops.tools.vmfs;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Generic IO device and file access interface.
@@ -30,11 +31,78 @@ public abstract class IOAccess
     	throw new IOException("Not implemented");
     }
     
+    /**
+     * Positional read (pread semantics): reads up to size bytes starting at
+     * the given position without using or changing the current position.
+     * 
+     * Implementations overriding this method must not touch any per-instance
+     * cursor state, so reads at different offsets can be issued concurrently
+     * from multiple threads. This default implementation falls back to the
+     * cursor based read and therefore serializes callers on this instance.
+     * 
+     * @param pos Absolute position to read from
+     * @param buffer Destination buffer
+     * @param offset Offset in the destination buffer
+     * @param size Amount of bytes to read
+     * @return Amount of bytes read, or -1 at end of device
+     * @throws IOException
+     */
     public int read( long pos, byte[] buffer, int offset, int size ) throws IOException
     {
-        setPosition( pos );
-        return read( buffer, offset, size );
+        synchronized ( this )
+        {
+            long old = getPosition();
+            setPosition( pos );
+            try
+            {
+                return read( buffer, offset, size );
+            }
+            finally
+            {
+                setPosition( old );
+            }
+        }
     }
+
+    /**
+     * Positional read into a byte buffer: reads up to dst.remaining() bytes
+     * starting at the given position and advances the buffer position by the
+     * amount read. Same concurrency rules as {@link #read(long, byte[], int, int)}.
+     * 
+     * Devices that can fill direct buffers without an intermediate array
+     * override this, the default reads through a temporary array.
+     * 
+     * @param pos Absolute position to read from
+     * @param dst Destination buffer
+     * @return Amount of bytes read, or -1 at end of device
+     * @throws IOException
+     */
+    public int read( long pos, ByteBuffer dst ) throws IOException
+    {
+        if ( dst.hasArray() )
+        {
+            int res = read( pos, dst.array(), dst.arrayOffset()+dst.position(), dst.remaining() );
+            if ( res>0 )
+                dst.position( dst.position()+res );
+            return res;
+        }
+        
+        byte[] tmp = new byte[ Math.min( dst.remaining(), 65536 ) ];
+        int done = 0;
+        while ( dst.hasRemaining() )
+        {
+            int now = Math.min( tmp.length, dst.remaining() );
+            int res = read( pos+done, tmp, 0, now );
+            if ( res<=0 )
+                break;
+            dst.put( tmp, 0, res );
+            done += res;
+            if ( res<now )
+                break;
+        }
+        return done==0 && tmp.length>0 ? -1 : done;
+    }
+
     public void write( long pos, byte[] buffer, int offset, int size ) throws IOException
     {
         setPosition( pos );
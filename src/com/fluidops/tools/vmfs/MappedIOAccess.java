@@ -0,0 +1,271 @@
+/*
+ * MappedIOAccess.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fluidops.util.logging.Log;
+
+/**
+ * Read-only IO access backed by memory mapped windows of a local
+ * image file or block device.
+ *
+ * A single mapping is limited to 2GB, so the device is mapped in
+ * fixed size windows on demand. Only a bounded number of windows
+ * is kept mapped, the least recently used ones are dropped.
+ *
+ * Block devices report no size on some JVMs, the size is then probed
+ * by reads. These JVMs refuse to map beyond the reported size though,
+ * so the constructor fails and callers fall back to regular random
+ * access (see VMFSDriver.mappedIOAccess).
+ *
+ * @author Uli
+ */
+public class MappedIOAccess extends IOAccess
+{
+    public static final long DEFAULT_WINDOW_SIZE = 256L * 1024L * 1024L;
+    public static final int DEFAULT_MAX_WINDOWS = 16;
+
+    RandomAccessFile raf;
+    FileChannel channel;
+    String file;
+    long size;
+    long windowSize;
+    Map<Long, MappedByteBuffer> windows;
+
+    long pos;
+
+    /**
+     * Maps the given file with default window size and count.
+     * @param file
+     * @throws IOException If the file cannot be mapped
+     */
+    public MappedIOAccess( String file ) throws IOException
+    {
+        this( file, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS );
+    }
+
+    /**
+     * Maps the given file.
+     * @param file Image file or device
+     * @param windowSize Size of a single mapping window (max. 2GB)
+     * @param maxWindows Max. amount of windows kept mapped
+     * @throws IOException If the file cannot be mapped
+     */
+    public MappedIOAccess( String file, long windowSize, final int maxWindows ) throws IOException
+    {
+        if ( windowSize<=0 || windowSize>Integer.MAX_VALUE )
+            throw new IllegalArgumentException("Illegal window size: "+windowSize);
+
+        this.file = file;
+        this.windowSize = windowSize;
+        raf = new RandomAccessFile( file, "r" );
+        channel = raf.getChannel();
+        windows = new LinkedHashMap<Long, MappedByteBuffer>( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<Long, MappedByteBuffer> eldest )
+            {
+                return size()>maxWindows;
+            }
+        };
+
+        try
+        {
+            size = channel.size();
+            if ( size<=0 )
+                size = probeSize( channel );
+            if ( size<=0 )
+                throw new IOException("Cannot determine size of "+file);
+
+            // Verify that mapping works at all
+            getWindow( 0 );
+        }
+        catch (IOException ex)
+        {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Determines the size of a channel that reports none (block devices)
+     * by searching for the first position a read fails at.
+     * @param channel
+     * @return The size, 0 if nothing can be read
+     * @throws IOException
+     */
+    static long probeSize( FileChannel channel ) throws IOException
+    {
+        ByteBuffer b = ByteBuffer.allocate( 1 );
+
+        // Double the position until reading fails, then bisect
+        long lo = 0, hi = 512;
+        while ( readable( channel, b, hi-1 ) )
+        {
+            lo = hi;
+            if ( hi>Long.MAX_VALUE/2 )
+                return hi;
+            hi *= 2;
+        }
+
+        // The size is within [lo,hi)
+        while ( hi-lo>1 )
+        {
+            long mid = lo + (hi-lo)/2;
+            if ( readable( channel, b, mid-1 ) )
+                lo = mid;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    static boolean readable( FileChannel channel, ByteBuffer b, long pos ) throws IOException
+    {
+        b.clear();
+        return channel.read( b, pos )>0;
+    }
+
+    /**
+     * Returns the mapping window with the given number, maps it if required.
+     * @param window
+     * @return
+     * @throws IOException
+     */
+    synchronized MappedByteBuffer getWindow( long window ) throws IOException
+    {
+        MappedByteBuffer mb = windows.get( window );
+        if ( mb==null )
+        {
+            long start = window * windowSize;
+            long len = Math.min( windowSize, size-start );
+            Log.debug( "mapping window @{x} size={}", start, len );
+            mb = channel.map( FileChannel.MapMode.READ_ONLY, start, len );
+            windows.put( window, mb );
+        }
+        return mb;
+    }
+
+    @Override
+    public long getPosition()
+    {
+        return pos;
+    }
+
+    @Override
+    public void setPosition(long pos)
+    {
+        this.pos = pos;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int size) throws IOException
+    {
+        int res = read( pos, buffer, offset, size );
+        if ( res>0 )
+            pos += res;
+        return res;
+    }
+
+    @Override
+    public int read(long pos, byte[] buffer, int offset, int size) throws IOException
+    {
+        if ( pos>=this.size )
+            return -1;
+        if ( size>this.size-pos )
+            size = (int)(this.size-pos);
+
+        int done = 0;
+        while ( done<size )
+        {
+            long p = pos + done;
+            long window = p / windowSize;
+            int posInWindow = (int)(p % windowSize);
+
+            // Use a private view, the window is shared between readers
+            ByteBuffer bb = getWindow( window ).duplicate();
+            int now = Math.min( size-done, bb.limit()-posInWindow );
+            bb.position( posInWindow );
+            bb.get( buffer, offset+done, now );
+            done += now;
+        }
+        return done;
+    }
+
+    @Override
+    public int read(long pos, ByteBuffer dst) throws IOException
+    {
+        if ( pos>=this.size )
+            return -1;
+        int size = (int)Math.min( dst.remaining(), this.size-pos );
+
+        int done = 0;
+        while ( done<size )
+        {
+            long p = pos + done;
+            int posInWindow = (int)(p % windowSize);
+
+            ByteBuffer bb = getWindow( p / windowSize ).duplicate();
+            int now = Math.min( size-done, bb.limit()-posInWindow );
+            bb.position( posInWindow );
+            bb.limit( posInWindow+now );
+            dst.put( bb );
+            done += now;
+        }
+        return done;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int size) throws IOException
+    {
+        throw new IOException("Readonly mode");
+    }
+
+    @Override
+    public long getSize()
+    {
+        return size;
+    }
+
+    @Override
+    public void setSize(long newSize)
+    {
+        throw new IllegalArgumentException("setSize not supported");
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        // Mappings are released by the GC once unreferenced
+        windows.clear();
+        try
+        {
+            raf.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+    	return "MappedIOAccess "+file+" pos="+getPosition()+" size="+getSize()+" windows="+windows.size();
+    }
+}
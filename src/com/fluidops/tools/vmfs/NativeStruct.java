@@ -8,22 +8,48 @@
  */
 package com.fluidops.tools.vmfs;
 
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A utility class to decode native binary data structures.
  * 
+ * The layout of a type is computed once and cached, see {@link #forType(Class)}.
+ * Along with the layout a decoder class is generated that stores the fields
+ * directly, see {@link DecoderGenerator}. Types the generated code cannot
+ * access are decoded through the typed setters of {@link Field}, as are all
+ * types if the global property com.fluidops.tools.vmfs.nativeStruct.reflection
+ * is set. Direct byte buffers are copied to an array for the generated decoder.
+ * 
  * @author Uli
  */
 public class NativeStruct
 {
     Class<?> type;
+    Constructor<?> constructor;
     static Map<Class<?>, Integer> sizeOfType;
+    static Map<Class<?>, NativeStruct> layouts = new ConcurrentHashMap<Class<?>, NativeStruct>();
     List<FieldInfo> fields;
+    FieldInfo[] fieldArray;
     int size;
+    Decoder decoder;
+    
+    static boolean reflection = Boolean.getBoolean("com.fluidops.tools.vmfs.nativeStruct.reflection");
+    
+    static final int KIND_BYTE = 0;
+    static final int KIND_SHORT = 1;
+    static final int KIND_INT = 2;
+    static final int KIND_LONG = 3;
+    static final int KIND_FLOAT = 4;
+    static final int KIND_DOUBLE = 5;
+    static final int KIND_BYTES = 6;
+    static final int KIND_STRING = 7;
+    static final int KIND_STRUCT = 8;
     
     static
     {
@@ -50,14 +76,32 @@ public class NativeStruct
     {
         Field field;
         int pos = -1, size = -1;
+        int kind;
+        NativeStruct struct;
         String SEPARATOR = "__";
      
         FieldInfo( Field field )
         {
             this.field = field;
+            field.setAccessible( true );
+            kind = kindOfField();
             getMetaInfo();
         }
         
+        int kindOfField()
+        {
+            Class<?> t = field.getType();
+            if ( t==byte.class ) return KIND_BYTE;
+            if ( t==short.class ) return KIND_SHORT;
+            if ( t==int.class ) return KIND_INT;
+            if ( t==long.class ) return KIND_LONG;
+            if ( t==float.class ) return KIND_FLOAT;
+            if ( t==double.class ) return KIND_DOUBLE;
+            if ( t==byte[].class ) return KIND_BYTES;
+            if ( t==String.class ) return KIND_STRING;
+            return KIND_STRUCT;
+        }
+        
         int lengthOfField()
         {
             Integer _size = sizeOfType.get( field.getType() );
@@ -65,11 +109,11 @@ public class NativeStruct
                 return _size;
             else
             {
-                if ( !field.getType().equals(String.class) )
+                if ( kind==KIND_STRUCT )
                 {
-                    NativeStruct n = new NativeStruct( field.getType() );
-                    if ( n.getSize()>0 )
-                        return n.getSize();
+                    struct = forType( field.getType() );
+                    if ( struct.getSize()>0 )
+                        return struct.getSize();
                 }
                 return -1;
             }
@@ -115,6 +159,19 @@ public class NativeStruct
         }
     }
 
+    /**
+     * Decoder of a struct type, subclasses are generated by
+     * {@link DecoderGenerator}.
+     * @author Uli
+     */
+    public abstract static class Decoder
+    {
+        /**
+         * Decodes at the given offset from the buffer into obj.
+         */
+        public abstract void decode( Object obj, byte[] buffer, int offset ) throws Exception;
+    }
+
     /**
      * Constructs a NativeStruct for the given type.
      * @param type
@@ -145,6 +202,144 @@ public class NativeStruct
             if ( pos>size )
                 size = pos;
         }
+        fieldArray = fields.toArray( new FieldInfo[ fields.size() ] );
+        if ( !reflection )
+            decoder = DecoderGenerator.generate( this );
+    }
+
+    /**
+     * Returns the cached NativeStruct layout for the given type.
+     * @param type
+     * @return
+     */
+    public static NativeStruct forType( Class<?> type )
+    {
+        NativeStruct ns = layouts.get( type );
+        if ( ns==null )
+        {
+            ns = new NativeStruct( type );
+            layouts.put( type, ns );
+        }
+        return ns;
+    }
+
+    /**
+     * A flyweight view of the struct overlaid on a byte buffer.
+     * Fields are read lazily on access, a single view can be moved
+     * across a whole buffer of records using {@link #at(int)}.
+     * 
+     * @author Uli
+     */
+    public class View
+    {
+        ByteBuffer bb;
+        int base;
+        
+        View( ByteBuffer bb, int offset )
+        {
+            if ( bb.order()!=ByteOrder.LITTLE_ENDIAN )
+                bb = bb.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+            this.bb = bb;
+            this.base = offset;
+        }
+        
+        /**
+         * Moves the view to the given offset in the buffer.
+         * @param offset
+         * @return this view
+         */
+        public View at( int offset )
+        {
+            base = offset;
+            return this;
+        }
+        
+        public int getOffset()
+        {
+            return base;
+        }
+        
+        public byte getByte( int field )
+        {
+            return bb.get( base + fieldArray[field].pos );
+        }
+        
+        public short getShort( int field )
+        {
+            return bb.getShort( base + fieldArray[field].pos );
+        }
+        
+        public int getInt( int field )
+        {
+            return bb.getInt( base + fieldArray[field].pos );
+        }
+        
+        public long getLong( int field )
+        {
+            return bb.getLong( base + fieldArray[field].pos );
+        }
+        
+        public String getString( int field ) throws UnsupportedEncodingException
+        {
+            FieldInfo fi = fieldArray[field];
+            if ( bb.hasArray() )
+                return NativeStruct.getString( bb.array(), bb.arrayOffset() + base + fi.pos, fi.size );
+            
+            byte[] b = getBytes( bb, base + fi.pos, fi.size );
+            return NativeStruct.getString( b, 0, b.length );
+        }
+        
+        /**
+         * Decodes the complete struct at the current offset into obj.
+         * @param obj
+         * @throws Exception
+         */
+        public void decode( Object obj ) throws Exception
+        {
+            NativeStruct.this.decode( obj, bb, base );
+        }
+    }
+    
+    /**
+     * Creates a view of this struct on the given buffer.
+     * @param bb
+     * @param offset
+     * @return
+     */
+    public View view( ByteBuffer bb, int offset )
+    {
+        return new View( bb, offset );
+    }
+    
+    /**
+     * Creates a view of this struct on the given buffer.
+     * @param buffer
+     * @param offset
+     * @return
+     */
+    public View view( byte[] buffer, int offset )
+    {
+        return new View( ByteBuffer.wrap( buffer ), offset );
+    }
+    
+    /**
+     * Returns the index of the field with the given name, for use with
+     * the typed getters of {@link View}. The name may be given with or
+     * without the meta information suffix, e.g. "name" for "name__128".
+     * 
+     * @param name
+     * @return
+     */
+    public int fieldIndex( String name )
+    {
+        for ( int i=0; i<fieldArray.length; i++ )
+        {
+            String n = fieldArray[i].field.getName();
+            int ix = n.lastIndexOf( fieldArray[i].SEPARATOR );
+            if ( n.equals(name) || (ix>0 && n.substring(0, ix).equals(name)) )
+                return i;
+        }
+        throw new IllegalArgumentException("Type="+type+": no field "+name);
     }
 
     /**
@@ -164,6 +359,23 @@ public class NativeStruct
         return "NativeStruct type="+type.getName()+" size="+size+" fields="+fields;
     }
 
+    /**
+     * Creates an empty instance of the type, for decoding sub-structs.
+     * @return
+     * @throws Exception
+     */
+    Object newInstance() throws Exception
+    {
+        Constructor<?> c = constructor;
+        if ( c==null )
+        {
+            c = type.getDeclaredConstructor();
+            c.setAccessible( true );
+            constructor = c;
+        }
+        return c.newInstance();
+    }
+
     /**
      * Decodes at the given offset from the buffer.
      * Unmarshals into the given object (which must be of the type with
@@ -176,56 +388,195 @@ public class NativeStruct
      */
     public void decode( Object obj, byte[] buffer, int offset ) throws Exception
     {
-        ByteBuffer bb = ByteBuffer.wrap( buffer );
-        bb.order( ByteOrder.LITTLE_ENDIAN );
-        for ( FieldInfo fi : fields )
+        if ( decoder!=null )
         {
-            if ( fi.field.getType().equals(byte.class) )
-            {                
-                fi.field.set( obj, bb.get( offset+fi.pos ) );
-            }
-            else
-            if ( fi.field.getType().equals(short.class) )
-            {                
-                fi.field.set( obj, bb.getShort( offset+fi.pos ) );
-            }
-            else
-            if ( fi.field.getType().equals(int.class) )
-            {                
-                fi.field.set( obj, bb.getInt( offset+fi.pos ) );
-            }
-            else
-            if ( fi.field.getType().equals(long.class) )
-            {                
-                fi.field.set( obj, bb.getLong( offset+fi.pos ) );
-            }
-            else
-            if ( fi.field.getType().equals(byte[].class) )
-            {
-                byte[] b = new byte[ fi.size ];
-                System.arraycopy( buffer, offset+fi.pos, b, 0, fi.size );
-                fi.field.set( obj, b );
-            }
-            else
-            if ( fi.field.getType().equals(String.class) )
+            decoder.decode( obj, buffer, offset );
+            return;
+        }
+        
+        for ( FieldInfo fi : fieldArray )
+        {
+            int p = offset + fi.pos;
+            switch ( fi.kind )
             {
-                int l;
-                for ( l=0; l<fi.size; l++ )
-                    if ( buffer[offset+fi.pos+l]==0 ) break;
-                
-                fi.field.set( obj, new String(buffer, offset+fi.pos, l, "UTF-8") );
+                case KIND_BYTE:
+                    fi.field.setByte( obj, buffer[p] );
+                    break;
+                case KIND_SHORT:
+                    fi.field.setShort( obj, getShort( buffer, p ) );
+                    break;
+                case KIND_INT:
+                    fi.field.setInt( obj, getInt( buffer, p ) );
+                    break;
+                case KIND_LONG:
+                    fi.field.setLong( obj, getLong( buffer, p ) );
+                    break;
+                case KIND_FLOAT:
+                    fi.field.setFloat( obj, Float.intBitsToFloat( getInt( buffer, p ) ) );
+                    break;
+                case KIND_DOUBLE:
+                    fi.field.setDouble( obj, Double.longBitsToDouble( getLong( buffer, p ) ) );
+                    break;
+                case KIND_BYTES:
+                {
+                    byte[] b = new byte[ fi.size ];
+                    System.arraycopy( buffer, p, b, 0, fi.size );
+                    fi.field.set( obj, b );
+                    break;
+                }
+                case KIND_STRING:
+                    fi.field.set( obj, getString( buffer, p, fi.size ) );
+                    break;
+                default:
+                {
+                    // A compound sub-struct
+                    Object _obj = fi.struct.newInstance();
+                    fi.struct.decode( _obj, buffer, p );
+                    fi.field.set( obj, _obj );
+                }
             }
-            else
+        }        
+    }
+
+    /**
+     * Decodes at the given absolute offset from the byte buffer,
+     * the position of the buffer is not changed.
+     * 
+     * @param obj
+     * @param bb
+     * @param offset
+     * @throws Exception
+     */
+    public void decode( Object obj, ByteBuffer bb, int offset ) throws Exception
+    {
+        if ( bb.hasArray() )
+        {
+            decode( obj, bb.array(), bb.arrayOffset()+offset );
+            return;
+        }
+        
+        if ( decoder!=null )
+        {
+            byte[] b = new byte[ size ];
+            ByteBuffer d = bb.duplicate();
+            d.position( offset );
+            d.get( b );
+            decoder.decode( obj, b, 0 );
+            return;
+        }
+        
+        if ( bb.order()!=ByteOrder.LITTLE_ENDIAN )
+            bb = bb.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+        
+        for ( FieldInfo fi : fieldArray )
+        {
+            int p = offset + fi.pos;
+            switch ( fi.kind )
             {
-                // A compound sub-struct
-                Class _type = fi.field.getType();
-                NativeStruct n = new NativeStruct( _type );
-                int _size = n.getSize();
-                Object _obj = _type.newInstance();
-                n.decode( _obj, buffer, offset+fi.pos );
-                fi.field.set( obj, _obj );
+                case KIND_BYTE:
+                    fi.field.setByte( obj, bb.get( p ) );
+                    break;
+                case KIND_SHORT:
+                    fi.field.setShort( obj, bb.getShort( p ) );
+                    break;
+                case KIND_INT:
+                    fi.field.setInt( obj, bb.getInt( p ) );
+                    break;
+                case KIND_LONG:
+                    fi.field.setLong( obj, bb.getLong( p ) );
+                    break;
+                case KIND_FLOAT:
+                    fi.field.setFloat( obj, bb.getFloat( p ) );
+                    break;
+                case KIND_DOUBLE:
+                    fi.field.setDouble( obj, bb.getDouble( p ) );
+                    break;
+                case KIND_BYTES:
+                    fi.field.set( obj, getBytes( bb, p, fi.size ) );
+                    break;
+                case KIND_STRING:
+                {
+                    byte[] b = getBytes( bb, p, fi.size );
+                    fi.field.set( obj, getString( b, 0, b.length ) );
+                    break;
+                }
+                default:
+                {
+                    // A compound sub-struct
+                    Object _obj = fi.struct.newInstance();
+                    fi.struct.decode( _obj, bb, p );
+                    fi.field.set( obj, _obj );
+                }
             }
-        }        
+        }
+    }
+    
+    static byte[] getBytes( ByteBuffer bb, int pos, int size )
+    {
+        byte[] b = new byte[ size ];
+        for ( int i=0; i<size; i++ )
+            b[i] = bb.get( pos+i );
+        return b;
+    }
+
+    /**
+     * Returns a copy of size bytes.
+     */
+    public static byte[] getBytes( byte[] b, int pos, int size )
+    {
+        byte[] res = new byte[ size ];
+        System.arraycopy( b, pos, res, 0, size );
+        return res;
+    }
+
+    /**
+     * Decodes a new instance of the given struct type.
+     */
+    public static Object decodeNew( Class<?> type, byte[] b, int pos ) throws Exception
+    {
+        NativeStruct ns = forType( type );
+        Object obj = ns.newInstance();
+        ns.decode( obj, b, pos );
+        return obj;
+    }
+
+    /**
+     * Decodes a little endian short.
+     */
+    public static short getShort( byte[] b, int pos )
+    {
+        return (short)( (b[pos] & 0xff) | ((b[pos+1] & 0xff) << 8) );
+    }
+
+    /**
+     * Decodes a little endian int.
+     */
+    public static int getInt( byte[] b, int pos )
+    {
+        return (b[pos] & 0xff)
+            | ((b[pos+1] & 0xff) << 8)
+            | ((b[pos+2] & 0xff) << 16)
+            | ((b[pos+3] & 0xff) << 24);
+    }
+
+    /**
+     * Decodes a little endian long.
+     */
+    public static long getLong( byte[] b, int pos )
+    {
+        return (getInt( b, pos ) & 0xffffffffL) | ((long)getInt( b, pos+4 ) << 32);
+    }
+
+    /**
+     * Decodes a zero terminated UTF-8 string of max. size bytes.
+     */
+    public static String getString( byte[] b, int pos, int size ) throws UnsupportedEncodingException
+    {
+        int l;
+        for ( l=0; l<size; l++ )
+            if ( b[pos+l]==0 ) break;
+        
+        return new String( b, pos, l, "UTF-8" );
     }
 
     /**
@@ -239,8 +590,21 @@ public class NativeStruct
      */
     public static void fromNative( Object obj, byte[] buffer, int offset ) throws Exception
     {
-        NativeStruct ns = new NativeStruct(obj.getClass());
-        ns.decode( obj, buffer, offset );        
+        forType( obj.getClass() ).decode( obj, buffer, offset );
+    }
+
+    /**
+     * Unmarshals the native struct at the given offset from the given byte buffer
+     * into the provided object.
+     * 
+     * @param obj
+     * @param bb
+     * @param offset
+     * @throws Exception
+     */
+    public static void fromNative( Object obj, ByteBuffer bb, int offset ) throws Exception
+    {
+        forType( obj.getClass() ).decode( obj, bb, offset );
     }
 
     /**
@@ -250,7 +614,7 @@ public class NativeStruct
      */
     public static void main(String[] args) throws Throwable
     {
-        NativeStruct ns = new NativeStruct( VMFSDriver.VolumeInfo.class );
+        NativeStruct ns = forType( VMFSDriver.VolumeInfo.class );
         System.out.println( ns );
     }
 }
@@ -10,23 +10,128 @@ package com.fluidops.tools.vmfs;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import com.fluidops.util.logging.Debug;
+import com.fluidops.util.logging.Log;
 
 /**
  * Random IO access backed by random access file.
+ * 
+ * Unaligned reads are widened to aligned ones through pooled direct
+ * buffers. Read-only devices can optionally be read with direct I/O
+ * (O_DIRECT) bypassing the OS page cache, if the JVM supports it.
+ * 
  * @author Uli
  */
 public class RandomIOAccess extends IOAccess
 {
+    /**
+     * Use direct I/O for read-only access if available
+     */
+    public static boolean directIO = Boolean.getBoolean("com.fluidops.tools.vmfs.directIO");
+    
+    static final int ALIGN = 512;
+    
+    /**
+     * Alignment for direct I/O, covers devices with 4K sectors
+     */
+    static final int DIRECT_ALIGN = 4096;
+    
+    static final int POOL_BUFFER_SIZE = 256*1024;
+    static final int MAX_POOLED_BUFFERS = 8;
+    
     RandomAccessFile raf;
+    FileChannel channel;
     String file, mode;
+    boolean direct;
+    int align = ALIGN;
+    Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
 
     public RandomIOAccess( String file, String mode ) throws IOException
     {
     	this.file = file;
     	this.mode = mode;
         raf = new RandomAccessFile( file, mode );
+        channel = raf.getChannel();
+        
+        if ( directIO && "r".equals(mode) )
+        {
+        	FileChannel dc = openDirect( file );
+        	if ( dc!=null )
+        	{
+        		channel = dc;
+        		direct = true;
+        		align = DIRECT_ALIGN;
+        	}
+        	else
+        		System.err.println("Direct I/O not available for "+file+", using regular I/O");
+        }
+    }
+    
+    /**
+     * Opens the file for reading with O_DIRECT. The option and the file
+     * channel API taking open options only exist in newer JVMs, so both
+     * are looked up by reflection.
+     * @return The channel, or null if not supported
+     */
+    static FileChannel openDirect( String file )
+    {
+    	try
+    	{
+    		// Direct I/O also needs aligned buffers
+    		ByteBuffer.class.getMethod( "alignedSlice", int.class );
+    		
+    		Class<?> optionClass = Class.forName( "java.nio.file.OpenOption" );
+    		Class<?> pathClass = Class.forName( "java.nio.file.Path" );
+    		Object path = Class.forName( "java.nio.file.Paths" ).getMethod( "get", String.class, String[].class )
+    			.invoke( null, file, new String[0] );
+    		
+    		// FileChannel.open( path, StandardOpenOption.READ, ExtendedOpenOption.DIRECT )
+    		Object options = Array.newInstance( optionClass, 2 );
+    		Array.set( options, 0, Class.forName( "java.nio.file.StandardOpenOption" ).getField( "READ" ).get( null ) );
+    		Array.set( options, 1, Class.forName( "com.sun.nio.file.ExtendedOpenOption" ).getField( "DIRECT" ).get( null ) );
+    		return (FileChannel)FileChannel.class.getMethod( "open", pathClass, options.getClass() )
+    			.invoke( null, path, options );
+    	}
+    	catch (Exception e)
+    	{
+    		Log.debug( "Direct I/O not supported: {}", e );
+    		return null;
+    	}
+    }
+    
+    /**
+     * Allocates a direct buffer whose address is aligned.
+     */
+    static ByteBuffer allocateAligned( int size, int align )
+    {
+    	ByteBuffer bb = ByteBuffer.allocateDirect( size+align );
+    	try
+    	{
+    		bb = (ByteBuffer)ByteBuffer.class.getMethod( "alignedSlice", int.class ).invoke( bb, align );
+    	}
+    	catch (Exception e)
+    	{
+    		// Older JVM, address alignment is only needed for direct I/O
+    	}
+    	bb.limit( size );
+    	return bb.slice();
+    }
+    
+    ByteBuffer acquireBuffer()
+    {
+    	ByteBuffer bb = pool.poll();
+    	return bb!=null ? bb : allocateAligned( POOL_BUFFER_SIZE, align );
+    }
+    
+    void releaseBuffer( ByteBuffer bb )
+    {
+    	if ( pool.size()<MAX_POOLED_BUFFERS )
+    		pool.offer( bb );
     }
     
     @Override
@@ -46,50 +151,116 @@ public class RandomIOAccess extends IOAccess
     @Override
     public int read(byte[] buffer, int offset, int size) throws IOException
     {
-    	Debug.out.println( "reading at "+ Long.toHexString(raf.getFilePointer())+" amount="+size);
+        long pos = raf.getFilePointer();
+        int res = read( pos, buffer, offset, size );
+        if ( res>0 )
+            raf.seek( pos + res );
+        return res;
+    }
+
+    /**
+     * Positional read through the file channel. Does not change the file
+     * pointer and can be called concurrently from multiple threads.
+     */
+    @Override
+    public int read(long pos, byte[] buffer, int offset, int size) throws IOException
+    {
+    	Log.debug( "reading at {x} amount={}", pos, size );
 
-    	long pos = raf.getFilePointer();
-    	int ALIGN = 512;
-    	int smod = (int)(pos%ALIGN), emod=(int)((pos+size)%ALIGN);
-    	
-    	if ( smod!=0 || emod!=0 )
+    	if ( direct || pos%align!=0 || (pos+size)%align!=0 )
+    		return readAligned( pos, buffer, offset, size );
+
+    	// Regular access, just read
+        int res = readFully( pos, buffer, offset, size );
+        Log.debug( "reading res={}", res );
+        return res;
+    }
+
+    /**
+     * Reads through a pooled aligned buffer, widening each chunk of the
+     * request to aligned boundaries, and copies the requested part.
+     * 
+     * @return Amount of bytes read, or -1 if pos is at/after the end
+     */
+    int readAligned( long pos, byte[] buffer, int offset, int size ) throws IOException
+    {
+    	ByteBuffer bb = acquireBuffer();
+    	try
     	{
-    		// Unaligned access to the device, now align the access
-    		long tpos = pos;
-    		int tsize = size;
-    		if ( smod!=0 )
-    		{
-    			tpos -= smod;
-    			tsize += smod;
-    		}
-    		if ( emod!=0 )
+    		int done = 0;
+    		while ( done<size )
     		{
-    			tsize += ALIGN-emod;
+    			long p = pos+done;
+    			int smod = (int)(p % align);
+    			int want = Math.min( size-done, bb.capacity()-smod );
+    			int tsize = (smod+want+align-1) / align * align;
+    			
+    			bb.clear();
+    			bb.limit( tsize );
+    			int tres = readFully( p-smod, bb );
+    			
+    			int res = Math.min( tres-smod, want );
+    			if ( res<=0 )
+    				break;
+    			bb.position( smod );
+    			bb.get( buffer, offset+done, res );
+    			done += res;
+    			if ( res<want )
+    				break;
     		}
-
-    		// Create a temp buffer for the aligned access
-    		byte[] tbuffer = new byte[ tsize ];
-    		raf.seek( tpos );
-        	Debug.out.println( "aligned reading at "+ Long.toHexString(raf.getFilePointer())+" amount="+tsize);
-    		int tres = raf.read( tbuffer, 0, tsize );
-            Debug.out.println( "aligned reading res="+tres );    		
-
-            // Adjust the result
-    		tres -= smod;
-    		if ( tres<0 ) tres = 0;
-    		if ( tres>size ) tres = size;
-            Debug.out.println("reading res="+tres);    		
-    		raf.seek( pos + tres );
-    		
-    		// Copy the resulting data into the buffer
-    		System.arraycopy(tbuffer, smod, buffer, offset, tres);
-    		return tres;
+    		Log.debug( "aligned reading res={}", done );
+    		return done==0 ? -1 : done;
+    	}
+    	finally
+    	{
+    		releaseBuffer( bb );
     	}
+    }
 
-    	// Regular access, just read
-        int res = raf.read(buffer, offset, size);
-        Debug.out.println("reading res="+res);
-        return res;
+    /**
+     * Aligned reads go straight from the channel into the buffer,
+     * unaligned ones take the byte array path.
+     */
+    @Override
+    public int read(long pos, ByteBuffer dst) throws IOException
+    {
+    	if ( direct || pos%align!=0 || dst.remaining()%align!=0 )
+    		return super.read( pos, dst );
+    	
+    	Log.debug( "reading at {x} amount={}", pos, dst.remaining() );
+        if ( !dst.hasRemaining() )
+            return 0;
+        return readFully( pos, dst );
+    }
+
+    /**
+     * Reads from the channel at the given position until the request is
+     * satisfied or the end of the device is reached.
+     * 
+     * @return Amount of bytes read, or -1 if pos is at/after the end
+     */
+    int readFully( long pos, byte[] buffer, int offset, int size ) throws IOException
+    {
+        if ( size==0 )
+            return 0;
+        
+        return readFully( pos, ByteBuffer.wrap( buffer, offset, size ) );
+    }
+
+    int readFully( long pos, ByteBuffer bb ) throws IOException
+    {
+        int done = 0;
+        while ( bb.hasRemaining() )
+        {
+            int res = channel.read( bb, pos+done );
+            if ( res<0 )
+                break;
+            done += res;
+            // With direct I/O a short read is the end of the device, the next position is unaligned
+            if ( direct && bb.hasRemaining() )
+                break;
+        }
+        return done==0 ? -1 : done;
     }
 
     @Override
@@ -121,7 +292,7 @@ public class RandomIOAccess extends IOAccess
         }
         catch (IOException e)
         {
-            Debug.out.println( "Error getting size: "+ e );
+            Log.debug( "Error getting size: {}", e );
             return -1;
         }
     }
@@ -145,17 +316,20 @@ public class RandomIOAccess extends IOAccess
     {
         try
         {
+            if ( direct )
+                channel.close();
             raf.close();
         }
         catch (IOException e)
         {
             e.printStackTrace();
         }        
+        pool.clear();
     }
     
     @Override
     public String toString()
     {
-    	return "RandomIOAccess "+file+"("+mode+") pos="+getPosition()+" size="+getSize();
+    	return "RandomIOAccess "+file+"("+mode+(direct ? ",direct" : "")+") pos="+getPosition()+" size="+getSize();
     }
 }
@@ -0,0 +1,594 @@
+/*
+ * ReadAheadIOAccess.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import com.fluidops.util.logging.Log;
+
+/**
+ * IO access decorator that detects sequential reads and prefetches the
+ * following data asynchronously.
+ *
+ * Meant for devices with a high latency per request, e.g. remote ones.
+ * Every read is matched against a small set of streams by its start
+ * offset. A read that continues a stream extends its read-ahead window,
+ * which starts at one chunk and doubles up to the max. window. A read
+ * that continues no stream starts a new one without read-ahead, so random
+ * access only costs the bookkeeping. Prefetched chunks are aligned to the
+ * chunk size, held in a bounded pool of buffers and released once read.
+ * Data that is not prefetched is read directly from the device.
+ *
+ * @author Uli
+ */
+public class ReadAheadIOAccess extends IOAccess
+{
+    public static final int DEFAULT_CHUNK_SIZE = 256*1024;
+    public static final int DEFAULT_WINDOW = 8;
+    public static final int DEFAULT_BUFFERS = 32;
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * Max. amount of concurrently tracked streams
+     */
+    static final int MAX_STREAMS = 8;
+
+    /**
+     * Amount of sequential reads of a stream before read-ahead starts
+     */
+    static final int MIN_SEQUENTIAL = 2;
+
+    IOAccess io;
+    int chunkSize;
+    int maxWindow;
+    int maxChunks;
+    ExecutorService executor;
+
+    // Guarded by this
+    LinkedHashMap<Long, Chunk> chunks = new LinkedHashMap<Long, Chunk>();
+    ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+    Stream[] streams = new Stream[ MAX_STREAMS ];
+    long clock;
+    boolean closed;
+
+    // Statistics, guarded by this
+    long sequentialReads, randomReads;
+    long prefetched, hits, waits, misses, wasted;
+
+    long pos;
+
+    /**
+     * Creates a read-ahead layer with default settings.
+     * @param io The device to read from
+     */
+    public ReadAheadIOAccess( IOAccess io )
+    {
+        this( io, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW, DEFAULT_BUFFERS, DEFAULT_THREADS );
+    }
+
+    /**
+     * Creates a read-ahead layer on top of the given IO access.
+     * @param io The device to read from
+     * @param chunkSize Size of a prefetched chunk
+     * @param maxWindow Max. amount of chunks prefetched ahead of a stream
+     * @param maxChunks Max. amount of prefetched chunks held at once
+     * @param threads Amount of threads reading ahead
+     */
+    public ReadAheadIOAccess( IOAccess io, int chunkSize, int maxWindow, int maxChunks, int threads )
+    {
+        if ( chunkSize<=0 || maxWindow<=0 || maxChunks<=0 || threads<=0 )
+            throw new IllegalArgumentException("Illegal read-ahead settings: chunkSize="+chunkSize
+                    +" window="+maxWindow+" buffers="+maxChunks+" threads="+threads);
+
+        this.io = io;
+        this.chunkSize = chunkSize;
+        this.maxWindow = maxWindow;
+        this.maxChunks = maxChunks;
+        executor = Executors.newFixedThreadPool( threads, new ThreadFactory()
+        {
+            public Thread newThread( Runnable r )
+            {
+                Thread t = new Thread( r, "ReadAhead" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+    /**
+     * Sequential access state of a reader.
+     */
+    static class Stream
+    {
+        long next;
+        int sequential;
+        int window;
+        long lastUse;
+    }
+
+    /**
+     * Aligned chunk of the device, read by the executor.
+     */
+    class Chunk implements Runnable
+    {
+        long index;
+        byte[] data;
+        int len;
+        int pins;
+        boolean done;
+        boolean used;
+        boolean removed;
+        IOException error;
+
+        Chunk( long index, byte[] data )
+        {
+            this.index = index;
+            this.data = data;
+        }
+
+        public void run()
+        {
+            int l = 0;
+            IOException err = null;
+            try
+            {
+                long start = index*chunkSize;
+                while ( l<data.length )
+                {
+                    int res = io.read( start+l, data, l, data.length-l );
+                    if ( res<=0 )
+                        break;
+                    l += res;
+                }
+            }
+            catch (IOException e)
+            {
+                err = e;
+            }
+            catch (RuntimeException e)
+            {
+                err = new IOException( e.toString() );
+            }
+
+            synchronized ( ReadAheadIOAccess.this )
+            {
+                len = l;
+                error = err;
+                done = true;
+                if ( removed )
+                    release( this );
+                ReadAheadIOAccess.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Matches the read against the streams and schedules the read-ahead
+     * of the stream.
+     */
+    synchronized void prefetch( long pos, int size )
+    {
+        if ( closed )
+            return;
+
+        clock++;
+        Stream st = null;
+        int victim = 0;
+        for ( int i=0; i<streams.length; i++ )
+        {
+            Stream s = streams[i];
+            if ( s==null )
+            {
+                victim = i;
+                break;
+            }
+            if ( s.next==pos )
+            {
+                st = s;
+                break;
+            }
+            if ( s.lastUse<streams[victim].lastUse )
+                victim = i;
+        }
+
+        if ( st!=null )
+        {
+            sequentialReads++;
+            if ( ++st.sequential>=MIN_SEQUENTIAL )
+                st.window = st.window==0 ? 1 : Math.min( 2*st.window, maxWindow );
+        }
+        else
+        {
+            // Random access, replace the least recently used stream
+            randomReads++;
+            if ( streams[victim]==null )
+                streams[victim] = new Stream();
+            st = streams[victim];
+            st.sequential = 0;
+            st.window = 0;
+        }
+        st.next = pos+size;
+        st.lastUse = clock;
+        if ( st.window==0 )
+            return;
+
+        long first = st.next / chunkSize;
+        long last = Math.min( first+st.window-1, (io.getSize()-1) / chunkSize );
+        for ( long j=first; j<=last; j++ )
+        {
+            if ( chunks.containsKey( j ) )
+                continue;
+            Chunk c = allocate( j );
+            if ( c==null )
+                break;
+            try
+            {
+                executor.execute( c );
+            }
+            catch (RejectedExecutionException e)
+            {
+                chunks.remove( j );
+                break;
+            }
+            prefetched++;
+        }
+    }
+
+    /**
+     * Creates a chunk with a pooled buffer, evicts a chunk if the pool
+     * is exhausted.
+     * @return The chunk, or null if all chunks are in use
+     */
+    Chunk allocate( long index )
+    {
+        if ( chunks.size()>=maxChunks && !evict() )
+            return null;
+
+        byte[] data = free.poll();
+        if ( data==null )
+            data = new byte[ chunkSize ];
+        Chunk c = new Chunk( index, data );
+        chunks.put( index, c );
+        return c;
+    }
+
+    /**
+     * Evicts the oldest chunk that is read and no longer ahead of a stream.
+     * @return false if no chunk can be evicted
+     */
+    boolean evict()
+    {
+        Iterator<Chunk> it = chunks.values().iterator();
+        while ( it.hasNext() )
+        {
+            Chunk c = it.next();
+            if ( !c.done || c.pins>0 || isAhead( c.index ) )
+                continue;
+            it.remove();
+            if ( !c.used )
+                wasted++;
+            c.removed = true;
+            release( c );
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the chunk is within the read-ahead window of a stream.
+     */
+    boolean isAhead( long index )
+    {
+        for ( Stream s : streams )
+        {
+            if ( s==null || s.window==0 )
+                continue;
+            long first = s.next / chunkSize;
+            if ( index>=first && index<first+s.window )
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the chunk from the map, its buffer returns to the pool once
+     * neither a reader nor the executor uses it.
+     */
+    void remove( Chunk c )
+    {
+        if ( chunks.get( c.index )==c )
+            chunks.remove( c.index );
+        c.removed = true;
+        release( c );
+    }
+
+    void release( Chunk c )
+    {
+        if ( c.removed && c.done && c.pins==0 && c.data!=null )
+        {
+            if ( free.size()<maxChunks )
+                free.push( c.data );
+            c.data = null;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int size) throws IOException
+    {
+        int res = read( pos, buffer, offset, size );
+        if ( res>0 )
+            pos += res;
+        return res;
+    }
+
+    @Override
+    public int read(long pos, byte[] buffer, int offset, int size) throws IOException
+    {
+        if ( size<=0 || buffer==null )
+            return io.read( pos, buffer, offset, size );
+
+        return read( pos, buffer, offset, null, size );
+    }
+
+    /**
+     * Reads into the byte buffer without an intermediate array.
+     */
+    @Override
+    public int read(long pos, ByteBuffer dst) throws IOException
+    {
+        if ( !dst.hasRemaining() )
+            return io.read( pos, dst );
+
+        return read( pos, null, 0, dst, dst.remaining() );
+    }
+
+    /**
+     * Reads into either the byte array or, if given, the byte buffer.
+     */
+    int read(long pos, byte[] buffer, int offset, ByteBuffer dst, int size) throws IOException
+    {
+        prefetch( pos, size );
+
+        long end = pos+size;
+        int done = 0;
+        while ( done<size )
+        {
+            long p = pos+done;
+            long idx = p / chunkSize;
+            int posInChunk = (int)(p - idx*chunkSize);
+
+            Chunk c;
+            int direct = 0;
+            synchronized ( this )
+            {
+                c = chunks.get( idx );
+                if ( c!=null )
+                {
+                    c.pins++;
+                    if ( !c.done )
+                    {
+                        waits++;
+                        try
+                        {
+                            while ( !c.done )
+                                wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            c.pins--;
+                            release( c );
+                            throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+                        }
+                    }
+                    if ( c.error!=null )
+                    {
+                        // Read again directly, reports the error to the caller
+                        Log.debug( "Read-ahead of chunk {} failed: {}", idx, c.error );
+                        c.pins--;
+                        remove( c );
+                        c = null;
+                    }
+                    else
+                        hits++;
+                }
+
+                if ( c==null )
+                {
+                    // Read directly up to the next prefetched chunk
+                    misses++;
+                    long limit = end;
+                    for ( long j=idx+1; j*chunkSize<end; j++ )
+                        if ( chunks.containsKey( j ) )
+                        {
+                            limit = j*chunkSize;
+                            break;
+                        }
+                    direct = (int)(limit-p);
+                }
+            }
+
+            if ( c==null )
+            {
+                int res = readDirect( p, buffer, offset+done, dst, direct );
+                if ( res<=0 )
+                    break;
+                done += res;
+                if ( res<direct )
+                    break;
+                continue;
+            }
+
+            int now = Math.min( size-done, c.len-posInChunk );
+            if ( now>0 )
+            {
+                if ( dst!=null )
+                    dst.put( c.data, posInChunk, now );
+                else
+                    System.arraycopy( c.data, posInChunk, buffer, offset+done, now );
+                done += now;
+            }
+            boolean eof = c.len<chunkSize && posInChunk+Math.max( now, 0 )>=c.len;
+            synchronized ( this )
+            {
+                c.used = true;
+                c.pins--;
+                // Sequential readers do not come back, free the chunk once read up to its end
+                if ( posInChunk+now>=c.len )
+                    remove( c );
+                else
+                    release( c );
+            }
+            if ( eof )
+                break;
+        }
+        return done==0 ? -1 : done;
+    }
+
+    int readDirect(long pos, byte[] buffer, int offset, ByteBuffer dst, int size) throws IOException
+    {
+        if ( dst==null )
+            return io.read( pos, buffer, offset, size );
+
+        int limit = dst.limit();
+        dst.limit( dst.position()+size );
+        try
+        {
+            return io.read( pos, dst );
+        }
+        finally
+        {
+            dst.limit( limit );
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int size) throws IOException
+    {
+        write( pos, buffer, offset, size );
+        pos += size;
+    }
+
+    @Override
+    public void write(long pos, byte[] buffer, int offset, int size) throws IOException
+    {
+        invalidate( pos, size );
+        io.write( pos, buffer, offset, size );
+        // A chunk scheduled or still reading during the write may hold the old data
+        invalidate( pos, size );
+    }
+
+    /**
+     * Drops the prefetched chunks overlapping the range.
+     */
+    synchronized void invalidate( long pos, long size )
+    {
+        for ( long j=pos/chunkSize; j<=(pos+size-1)/chunkSize; j++ )
+        {
+            Chunk c = chunks.get( j );
+            if ( c!=null )
+                remove( c );
+        }
+    }
+
+    @Override
+    public long getPosition()
+    {
+        return pos;
+    }
+
+    @Override
+    public void setPosition(long pos)
+    {
+        this.pos = pos;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return io.getSize();
+    }
+
+    @Override
+    public void setSize(long newSize)
+    {
+        synchronized ( this )
+        {
+            for ( Chunk c : chunks.values().toArray( new Chunk[ chunks.size() ] ) )
+                remove( c );
+        }
+        io.setSize( newSize );
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized ( this )
+        {
+            closed = true;
+            // Queued chunks are dropped by the executor, wake up their readers
+            for ( Chunk c : chunks.values() )
+                if ( !c.done )
+                {
+                    c.done = true;
+                    c.error = new IOException("Device closed");
+                }
+            chunks.clear();
+            free.clear();
+            notifyAll();
+        }
+        executor.shutdownNow();
+        io.close();
+    }
+
+    public synchronized long getPrefetched()
+    {
+        return prefetched;
+    }
+
+    public synchronized long getHits()
+    {
+        return hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return misses;
+    }
+
+    public synchronized long getWasted()
+    {
+        return wasted;
+    }
+
+    /**
+     * Returns the read-ahead statistics.
+     */
+    public synchronized String getStatistics()
+    {
+        long total = hits+misses;
+        return "chunks="+chunks.size()+"/"+maxChunks+" sequential="+sequentialReads+" random="+randomReads
+            +" prefetched="+prefetched+" hits="+hits+" waits="+waits+" misses="+misses+" wasted="+wasted
+            +" hitRate="+(total==0 ? 0 : 100*hits/total)+"%";
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReadAheadIOAccess chunkSize="+chunkSize+" window="+maxWindow+" "+getStatistics()+" on "+io;
+    }
+}
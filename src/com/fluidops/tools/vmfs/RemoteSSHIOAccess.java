@@ -11,15 +11,37 @@ package com.fluidops.tools.vmfs;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
 import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-import com.fluidops.util.logging.Debug;
+import com.fluidops.util.logging.Log;
 import com.trilead.ssh2.*;
 
 /**
  * IO access based on SSH.
+ *
+ * The device is opened once and kept open. Positional reads are sent
+ * through an {@link SFTPReader} that keeps several requests in flight,
+ * writes and the fstat go through the SFTP client of the SSH library.
+ * If SFTP is not available, reads go through a dd loop running in a
+ * single SSH session, see {@link DDReader}. The dd loop can also be
+ * chosen with the transport parameter of the URL or the global property
+ * com.fluidops.tools.vmfs.ssh.transport: "dd", or "gzip" to compress
+ * the data on the remote side.
+ *
+ * Concurrent positional reads are dispatched over a pool of SSH
+ * connections, each with its own reader. Connections are opened on
+ * demand up to the pool size, a broken connection is replaced and the
+ * read is retried once.
+ *
  * @author Uli
  */
 public class RemoteSSHIOAccess extends IOAccess
@@ -32,13 +54,62 @@ public class RemoteSSHIOAccess extends IOAccess
     ConnectionInfo ci;
     
     SFTPv3Client sftp;
-    SFTPv3FileHandle deviceHandle;
+    SFTPv3FileHandle handle;
+    String transport;
+    
+    // Reader connection pool, empty if pipelined reads are not available
+    BlockingQueue<ReadChannel> idle = new LinkedBlockingQueue<ReadChannel>();
+    int channels;
+    int maxChannels;
+    boolean closed;
+    
+    // Reader for hosts without SFTP
+    DDReader dd;
     
     Session s;
     
+    /**
+     * Read transports: pipelined SFTP reads (dd if SFTP is not available),
+     * a dd loop, or a dd loop with gzip compression
+     */
+    public static final String TRANSPORT_SFTP = "sftp";
+    public static final String TRANSPORT_DD = "dd";
+    public static final String TRANSPORT_GZIP = "gzip";
+    
+    /**
+     * Max. amount of outstanding SFTP read requests
+     */
+    public static int sftpWindow = Integer.getInteger("com.fluidops.tools.vmfs.ssh.window", SFTPReader.DEFAULT_WINDOW);
+    
+    /**
+     * Size of a single SFTP read request
+     */
+    public static int sftpRequestSize = Integer.getInteger("com.fluidops.tools.vmfs.ssh.requestSize", SFTPReader.DEFAULT_REQUEST_SIZE);
+    
+    /**
+     * Max. amount of SSH connections used for concurrent reads
+     */
+    public static int sshConnections = Integer.getInteger("com.fluidops.tools.vmfs.ssh.connections", 4);
+    
+    /**
+     * Block size of the dd reads if SFTP is not available
+     */
+    public static int ddBlockSize = Integer.getInteger("com.fluidops.tools.vmfs.ssh.ddBlockSize", DDReader.DEFAULT_BLOCK_SIZE);
+    
+    /**
+     * Max. length of a single read of the SFTP client
+     */
+    static final int SFTP_MAX_READ = 32768;
+    
+    static final int TRANSFER_BUFFER_SIZE = 256*1024;
+    static final int MAX_TRANSFER_BUFFERS = 8;
+    
     long pos;
     long size;
     
+    // Arrays for reads into direct buffers
+    Queue<byte[]> transferBuffers = new ConcurrentLinkedQueue<byte[]>();
+    
     /**
      * Creates a new Remote SSH IO access.
      * @param sshUri SSH URI of the device/file
@@ -77,28 +148,32 @@ public class RemoteSSHIOAccess extends IOAccess
         }
         path = url.getPath();
         
-        c = new Connection( host, port );
-        ci = c.connect();
-
-        // Enable auth without passwd
-        if ( passwd!=null )
-        	c.authenticateWithPassword(user, passwd);
-        else
-        	c.authenticateWithNone(user);
+        // Transport of the reads, e.g. ssh://root@host/dev/sdb?transport=gzip
+        transport = System.getProperty("com.fluidops.tools.vmfs.ssh.transport", TRANSPORT_SFTP);
+        if ( url.getQuery()!=null )
+            for ( String pair : url.getQuery().split("&") )
+                if ( pair.startsWith("transport=") )
+                    transport = pair.substring( "transport=".length() );
+        if ( !TRANSPORT_SFTP.equals(transport) && !TRANSPORT_DD.equals(transport) && !TRANSPORT_GZIP.equals(transport) )
+            throw new IOException("Unknown SSH transport: "+transport);
+        
+        c = connect();
         
         try
         {
         	sftp = new SFTPv3Client( c );
-            openDevice();
-            SFTPv3FileAttributes attr = sftp.fstat( deviceHandle );
-            closeDevice();
+            handle = openDevice();
+            SFTPv3FileAttributes attr = sftp.fstat( handle );
             size = attr.size;
         }
         catch (IOException ex)
         {
-        	System.out.println("SFTP failed, fallback to SSH");
+        	Log.warn( "SFTP failed, fallback to SSH: {}", ex.getMessage() );
         	// Fall back to SSH only
+        	if ( sftp!=null )
+        		sftp.close();
         	sftp = null;
+        	handle = null;
         	
             s = c.openSession();
             s.execCommand("stat -t \""+path+"\"");
@@ -111,6 +186,199 @@ public class RemoteSSHIOAccess extends IOAccess
             /* String statPath = */ st.nextToken();
             size = Long.parseLong( st.nextToken() );        	
         }        
+        
+        if ( sftp!=null && TRANSPORT_SFTP.equals(transport) )
+        {
+            try
+            {
+                // The first reader shares the main connection
+                idle.add( new ReadChannel( c, new SFTPReader( c, path, sftpWindow, sftpRequestSize ) ) );
+                channels = 1;
+                maxChannels = Math.max( 1, sshConnections );
+            }
+            catch (IOException ex)
+            {
+                // Reads use the SFTP client, one request at a time
+                Log.warn( "SFTP: pipelined reads not available: {}", ex.getMessage() );
+            }
+        }
+    }
+    
+    /**
+     * Opens and authenticates a new connection to the host.
+     */
+    Connection connect() throws IOException
+    {
+        Connection c = new Connection( host, port );
+        ci = c.connect();
+
+        // Enable auth without passwd
+        if ( passwd!=null )
+        	c.authenticateWithPassword(user, passwd);
+        else
+        	c.authenticateWithNone(user);
+        return c;
+    }
+    
+    /**
+     * Reader on a pooled connection.
+     */
+    class ReadChannel
+    {
+        Connection conn;
+        SFTPReader reader;
+        
+        ReadChannel( Connection conn, SFTPReader reader )
+        {
+            this.conn = conn;
+            this.reader = reader;
+        }
+        
+        void close()
+        {
+            reader.close();
+            // The main connection is closed with the device
+            if ( conn!=c )
+                conn.close();
+        }
+    }
+    
+    /**
+     * Opens a reader on a new connection.
+     */
+    ReadChannel openChannel() throws IOException
+    {
+        Connection conn = connect();
+        try
+        {
+            return new ReadChannel( conn, new SFTPReader( conn, path, sftpWindow, sftpRequestSize ) );
+        }
+        catch (IOException ex)
+        {
+            conn.close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Takes an idle reader from the pool, opens a new connection if all
+     * readers are busy and the pool is not full, waits otherwise.
+     */
+    ReadChannel acquire() throws IOException
+    {
+        for (;;)
+        {
+            boolean open;
+            synchronized ( idle )
+            {
+                if ( closed )
+                    throw new IOException("Device closed");
+                ReadChannel ch = idle.poll();
+                if ( ch!=null )
+                    return ch;
+                open = channels<maxChannels;
+                if ( open )
+                    channels++;
+            }
+            
+            if ( open )
+            {
+                try
+                {
+                    ReadChannel ch = openChannel();
+                    Log.debug( "SSH: opened read connection {} to {}", channels, host );
+                    return ch;
+                }
+                catch (IOException ex)
+                {
+                    synchronized ( idle )
+                    {
+                        channels--;
+                        if ( channels==0 )
+                            throw ex;
+                        // E.g. the host limits the sessions, make do with the open ones
+                        maxChannels = channels;
+                    }
+                    Log.warn( "SSH: cannot open more than {} read connections to {}: {}", channels, host, ex.getMessage() );
+                }
+            }
+            
+            try
+            {
+                ReadChannel ch = idle.poll( 1, TimeUnit.SECONDS );
+                if ( ch!=null )
+                    return ch;
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("Interrupted while waiting for a read connection");
+            }
+        }
+    }
+    
+    /**
+     * Returns the reader to the pool.
+     */
+    void release( ReadChannel ch )
+    {
+        synchronized ( idle )
+        {
+            if ( !closed )
+            {
+                idle.add( ch );
+                return;
+            }
+        }
+        ch.close();
+    }
+    
+    /**
+     * Closes a broken reader and removes it from the pool.
+     */
+    void discard( ReadChannel ch )
+    {
+        ch.close();
+        synchronized ( idle )
+        {
+            channels--;
+        }
+    }
+    
+    /**
+     * Reads on a pooled connection, a broken connection is replaced and
+     * the read retried once.
+     */
+    int readPooled( long pos, byte[] buffer, int offset, int size ) throws IOException
+    {
+        ReadChannel ch = acquire();
+        for ( int attempt=0; ; attempt++ )
+        {
+            try
+            {
+                int res = ch.reader.read( pos, buffer, offset, size );
+                release( ch );
+                return res;
+            }
+            catch (SFTPReader.SFTPStatusException ex)
+            {
+                // Error reported by the server, the connection is still in sync
+                release( ch );
+                throw ex;
+            }
+            catch (IOException ex)
+            {
+                discard( ch );
+                if ( attempt>0 || closed )
+                    throw ex;
+                Log.warn( "SSH: read connection to {} failed, reconnecting: {}", host, ex.getMessage() );
+                ch = acquire();
+            }
+            catch (RuntimeException ex)
+            {
+                discard( ch );
+                throw ex;
+            }
+        }
     }
 
 	/**
@@ -139,23 +407,22 @@ public class RemoteSSHIOAccess extends IOAccess
         return readUrlToBuffer( in ).toString();
     }
     
-    void openDevice() throws IOException
+    SFTPv3FileHandle openDevice() throws IOException
     {
-        deviceHandle = rw ? sftp.openFileRW( path ) : sftp.openFileRO( path );
+        return rw ? sftp.openFileRW( path ) : sftp.openFileRO( path );
     }
 
-    void closeDevice()
+    void closeDevice( SFTPv3FileHandle handle )
     {
-        if ( deviceHandle!=null )
+        if ( handle!=null )
         {
             try
             {
-                sftp.closeFile( deviceHandle );
-                deviceHandle = null;
+                sftp.closeFile( handle );
             }
             catch (IOException e)
             {
-                e.printStackTrace();
+                Log.debug( "SFTP: close failed: {}", e );
             }
         }
     }
@@ -163,10 +430,22 @@ public class RemoteSSHIOAccess extends IOAccess
     @Override
     public void close()
     {
+        synchronized ( idle )
+        {
+            closed = true;
+        }
+        for ( ReadChannel ch=idle.poll(); ch!=null; ch=idle.poll() )
+            ch.close();
+        synchronized ( this )
+        {
+            if ( dd!=null )
+                dd.close();
+            dd = null;
+        }
         if ( sftp!=null )
         {
-            closeDevice();
-        	sftp.close();
+            closeDevice( handle );
+            sftp.close();
         }
         if ( s!=null )
         	s.close();
@@ -188,42 +467,126 @@ public class RemoteSSHIOAccess extends IOAccess
 
     @Override
     public synchronized int read(byte[] buffer, int offset, int size) throws IOException
+    {
+        int res = read( pos, buffer, offset, size );
+        if ( res>0 )
+            pos += res;
+        return res;
+    }
+
+    /**
+     * Positional read, does not use or change the current position.
+     * Concurrent readers use the pooled connections, or are serialized on
+     * the SFTP client instead of this instance.
+     */
+    @Override
+    public int read(long pos, byte[] buffer, int offset, int size) throws IOException
     {
         if ( size==0 ) return 0;
-        if ( sftp!=null )
+        if ( maxChannels>0 )
+        {
+            // Pipelined SFTP reads
+            return readPooled( pos, buffer, offset, size );
+        }
+        else if ( sftp!=null && TRANSPORT_SFTP.equals(transport) )
         {
         	// We have SFTP
-            openDevice();
-            try
-            {
-                int res = sftp.read( deviceHandle, pos, buffer, offset, size);
-                Debug.out.println("SSH: read "+buffer.length+" @"+Long.toHexString(pos));
-                pos += res;
-                return res;
-            }
-            finally
+            synchronized ( sftp )
             {
-                closeDevice();
+                int done = 0;
+                while ( done<size )
+                {
+                    int now = Math.min( size-done, SFTP_MAX_READ );
+                    int res = sftp.read( handle, pos+done, buffer, offset+done, now );
+                    if ( res<=0 )
+                        break;
+                    done += res;
+                    if ( res<now )
+                        break;
+                }
+                Log.debug( "SSH: read {} @{x}", done, pos );
+                return done==0 ? -1 : done;
             }
         }
         else
         {
         	// SSH fallback
-            Session s = c.openSession();
-            String ddCmd;
-            // If pos and size are on block boundaries, make use of bs=512 to reach up to 2TB
-            if ( pos%512==0 && size%512==0 )
-            	ddCmd = "dd if=\""+path+"\" bs=512 skip="+(pos/512L)+" count="+(size/512);
-            else
-            	ddCmd = "dd if=\""+path+"\" bs=1 skip="+pos+" count="+size;
-            	
-            s.execCommand( ddCmd );
-            byte[] output = readUrlToBuffer( s.getStdout() ).toByteArray();
-            Debug.out.println("SSH: read "+output.length+" @"+Long.toHexString(pos));
-            System.arraycopy( output, 0, buffer, offset, output.length );
-            pos += output.length;
-            s.close();
-            return output.length;
+            return readDD( pos, buffer, offset, size );
+        }
+    }
+    
+    /**
+     * Positional read into a byte buffer. Direct buffers are filled through
+     * pooled arrays, each a single (pipelined) read instead of a series of
+     * small reads through a new array.
+     */
+    @Override
+    public int read(long pos, ByteBuffer dst) throws IOException
+    {
+        if ( dst.hasArray() || !dst.hasRemaining() )
+            return super.read( pos, dst );
+        
+        byte[] buf = transferBuffers.poll();
+        if ( buf==null )
+            buf = new byte[ TRANSFER_BUFFER_SIZE ];
+        int done = 0;
+        try
+        {
+            while ( dst.hasRemaining() )
+            {
+                int now = Math.min( buf.length, dst.remaining() );
+                int res = read( pos+done, buf, 0, now );
+                if ( res<=0 )
+                    break;
+                dst.put( buf, 0, res );
+                done += res;
+                if ( res<now )
+                    break;
+            }
+        }
+        finally
+        {
+            if ( transferBuffers.size()<MAX_TRANSFER_BUFFERS )
+                transferBuffers.offer( buf );
+        }
+        return done==0 ? -1 : done;
+    }
+    
+    synchronized DDReader getDDReader() throws IOException
+    {
+        if ( closed )
+            throw new IOException("Device closed");
+        if ( dd==null )
+            dd = new DDReader( c, path, ddBlockSize, TRANSPORT_GZIP.equals(transport) );
+        return dd;
+    }
+    
+    synchronized void dropDDReader( DDReader reader )
+    {
+        reader.close();
+        if ( dd==reader )
+            dd = null;
+    }
+    
+    /**
+     * Reads through the dd loop, restarts it once if it terminated.
+     */
+    int readDD( long pos, byte[] buffer, int offset, int size ) throws IOException
+    {
+        for ( int attempt=0; ; attempt++ )
+        {
+            DDReader reader = getDDReader();
+            try
+            {
+                return reader.read( pos, buffer, offset, size );
+            }
+            catch (IOException ex)
+            {
+                dropDDReader( reader );
+                if ( attempt>0 || closed )
+                    throw ex;
+                Log.warn( "SSH: dd reader of {} failed, restarting: {}", path, ex.getMessage() );
+            }
         }
     }
 
@@ -242,21 +605,17 @@ public class RemoteSSHIOAccess extends IOAccess
     @Override
     public synchronized void write(byte[] buffer, int offset, int size) throws IOException
     {
-        openDevice();
-        try
+        synchronized ( sftp )
         {
-            sftp.write( deviceHandle, pos, buffer, offset, size);
+            sftp.write( handle, pos, buffer, offset, size);
             pos += size;
         }
-        finally
-        {
-            closeDevice();
-        }
     }
     
     @Override
     public String toString()
     {
-    	return "RemoteSSHIOAccess "+url.getHost()+":"+url.getPath()+" pos="+getPosition()+" size="+getSize()+" SFTP="+(sftp!=null);
+    	return "RemoteSSHIOAccess "+url.getHost()+":"+url.getPath()+" pos="+getPosition()+" size="+getSize()+" SFTP="+(sftp!=null)+" transport="+transport
+    		+" pipelined="+(maxChannels>0)+" connections="+channels+"/"+maxChannels+(dd!=null ? " dd: "+dd.getStatistics() : "");
     }
 }
@@ -0,0 +1,405 @@
+/*
+ * SFTPReader.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fluidops.util.logging.Log;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
+
+/**
+ * Minimal SFTP (protocol version 3) client for reading a single file
+ * with pipelined requests.
+ *
+ * The SFTP client of the SSH library waits for the response of every read
+ * before sending the next request, so a read costs a round trip per
+ * 32KB. This client keeps the file open and splits a read into requests
+ * of which up to a window are in flight at the same time.
+ *
+ * @author Uli
+ */
+public class SFTPReader
+{
+    static final int SSH_FXP_INIT = 1;
+    static final int SSH_FXP_VERSION = 2;
+    static final int SSH_FXP_OPEN = 3;
+    static final int SSH_FXP_CLOSE = 4;
+    static final int SSH_FXP_READ = 5;
+    static final int SSH_FXP_STATUS = 101;
+    static final int SSH_FXP_HANDLE = 102;
+    static final int SSH_FXP_DATA = 103;
+
+    static final int SSH_FXF_READ = 0x01;
+    static final int SSH_FX_OK = 0;
+    static final int SSH_FX_EOF = 1;
+
+    /**
+     * Max. size of a single read request, servers are only required to support 32KB
+     */
+    public static final int DEFAULT_REQUEST_SIZE = 32768;
+
+    public static final int DEFAULT_WINDOW = 16;
+
+    Session session;
+    DataInputStream in;
+    OutputStream out;
+    String path;
+    byte[] handle;
+    int window;
+    int requestSize;
+    int nextId = 1;
+
+    /**
+     * Opens the file on a new SFTP session of the connection.
+     * @param c The SSH connection
+     * @param path Remote file
+     * @param window Max. amount of outstanding requests
+     * @param requestSize Size of a single request
+     * @throws IOException
+     */
+    public SFTPReader( Connection c, String path, int window, int requestSize ) throws IOException
+    {
+        Session s = c.openSession();
+        try
+        {
+            s.startSubSystem( "sftp" );
+            init( s.getStdout(), s.getStdin(), path, window, requestSize );
+        }
+        catch (IOException ex)
+        {
+            s.close();
+            throw ex;
+        }
+        session = s;
+    }
+
+    /**
+     * Opens the file on an established SFTP byte stream.
+     */
+    SFTPReader( InputStream in, OutputStream out, String path, int window, int requestSize ) throws IOException
+    {
+        init( in, out, path, window, requestSize );
+    }
+
+    void init( InputStream in, OutputStream out, String path, int window, int requestSize ) throws IOException
+    {
+        if ( window<=0 || requestSize<=0 )
+            throw new IllegalArgumentException("Illegal window="+window+" requestSize="+requestSize);
+
+        this.in = new DataInputStream( new BufferedInputStream( in, 65536 ) );
+        this.out = out;
+        this.path = path;
+        this.window = window;
+        this.requestSize = requestSize;
+
+        // Version negotiation
+        Packet p = new Packet( SSH_FXP_INIT );
+        p.putInt( 3 );
+        send( p );
+        int len = this.in.readInt();
+        int type = this.in.readUnsignedByte();
+        if ( type!=SSH_FXP_VERSION )
+            throw new IOException("SFTP: unexpected response "+type+" to init");
+        int version = this.in.readInt();
+        skip( len-5 );
+        if ( version<3 )
+            throw new IOException("SFTP: protocol version "+version+" not supported");
+
+        // Open the file
+        int id = nextId++;
+        p = new Packet( SSH_FXP_OPEN );
+        p.putInt( id );
+        p.putString( path.getBytes( "UTF-8" ) );
+        p.putInt( SSH_FXF_READ );
+        p.putInt( 0 ); // no attributes
+        send( p );
+
+        len = this.in.readInt();
+        type = this.in.readUnsignedByte();
+        int rid = this.in.readInt();
+        if ( rid!=id )
+            throw new IOException("SFTP: unexpected response id "+rid);
+        if ( type==SSH_FXP_STATUS )
+            throw new IOException("SFTP: cannot open "+path+": "+readStatus( len-5 ));
+        if ( type!=SSH_FXP_HANDLE )
+            throw new IOException("SFTP: unexpected response "+type+" to open");
+        handle = new byte[ this.in.readInt() ];
+        this.in.readFully( handle );
+    }
+
+    /**
+     * Positional read, sends up to a window of requests before waiting
+     * for the responses. Reads are serialized on this instance.
+     *
+     * @return Amount of bytes read, or -1 at end of file
+     * @throws IOException
+     */
+    public synchronized int read( long pos, byte[] buffer, int offset, int size ) throws IOException
+    {
+        if ( size<=0 )
+            return 0;
+
+        // Per request state, a short response is completed by a nested read
+        int count = (size+requestSize-1) / requestSize;
+        long[] reqPos = new long[ count ];
+        int[] reqLen = new int[ count ];
+        int[] reqDone = new int[ count ];
+        for ( int i=0; i<count; i++ )
+        {
+            reqPos[i] = pos + (long)i*requestSize;
+            reqLen[i] = Math.min( requestSize, size-i*requestSize );
+            reqDone[i] = -1;
+        }
+
+        int baseId = nextId;
+        nextId += count;
+        int sent = 0, received = 0;
+        boolean eof = false;
+        IOException error = null;
+        while ( received<sent || (sent<count && !eof && error==null) )
+        {
+            while ( sent<count && sent-received<window && !eof && error==null )
+            {
+                sendRead( baseId+sent, reqPos[sent], reqLen[sent] );
+                sent++;
+            }
+            out.flush();
+
+            // All responses must be consumed, even after an error
+            try
+            {
+                int i = receive( baseId, reqLen, reqDone, buffer, offset );
+                if ( reqDone[i]==0 )
+                    eof = true;
+            }
+            catch (SFTPStatusException ex)
+            {
+                if ( error==null )
+                    error = ex;
+            }
+            received++;
+        }
+        if ( error!=null )
+            throw error;
+
+        // Collect the result, completing short responses
+        int done = 0;
+        for ( int i=0; i<count; i++ )
+        {
+            if ( reqDone[i]<0 )
+                break;
+            while ( reqDone[i]>0 && reqDone[i]<reqLen[i] )
+            {
+                int res = read( reqPos[i]+reqDone[i], buffer, offset+i*requestSize+reqDone[i], reqLen[i]-reqDone[i] );
+                if ( res<=0 )
+                    break;
+                reqDone[i] += res;
+            }
+            done += reqDone[i];
+            if ( reqDone[i]<reqLen[i] )
+                break;
+        }
+        Log.debug( "SFTP: read {} @{x}", done, pos );
+        return done==0 ? -1 : done;
+    }
+
+    void sendRead( int id, long pos, int len ) throws IOException
+    {
+        Packet p = new Packet( SSH_FXP_READ );
+        p.putInt( id );
+        p.putString( handle );
+        p.putLong( pos );
+        p.putInt( len );
+        p.writeTo( out );
+    }
+
+    /**
+     * Receives a single response of the current read, copies the data
+     * to its place in the buffer.
+     * @return Index of the request
+     */
+    int receive( int baseId, int[] reqLen, int[] reqDone, byte[] buffer, int offset ) throws IOException
+    {
+        int len = in.readInt();
+        int type = in.readUnsignedByte();
+        int id = in.readInt();
+        int i = id-baseId;
+        if ( i<0 || i>=reqLen.length )
+            throw new IOException("SFTP: unexpected response id "+id);
+
+        if ( type==SSH_FXP_DATA )
+        {
+            int n = in.readInt();
+            if ( n>reqLen[i] )
+                throw new IOException("SFTP: response exceeds request: "+n+" > "+reqLen[i]);
+            in.readFully( buffer, offset+i*requestSize, n );
+            skip( len-9-n );
+            reqDone[i] = n;
+        }
+        else if ( type==SSH_FXP_STATUS )
+        {
+            int code = in.readInt();
+            String msg = readStatusMessage( len-9 );
+            if ( code!=SSH_FX_EOF )
+                throw new SFTPStatusException("SFTP: read of "+path+" failed: "+code+" "+msg);
+            reqDone[i] = 0;
+        }
+        else
+            throw new IOException("SFTP: unexpected response "+type+" to read");
+        return i;
+    }
+
+    String readStatus( int len ) throws IOException
+    {
+        int code = in.readInt();
+        return code+" "+readStatusMessage( len-4 );
+    }
+
+    /**
+     * Reads the message and language tag of a status response.
+     */
+    String readStatusMessage( int len ) throws IOException
+    {
+        if ( len<4 )
+        {
+            skip( len );
+            return "";
+        }
+        byte[] msg = new byte[ in.readInt() ];
+        in.readFully( msg );
+        skip( len-4-msg.length );
+        return new String( msg, "UTF-8" );
+    }
+
+    void skip( int len ) throws IOException
+    {
+        while ( len>0 )
+        {
+            int res = in.skipBytes( len );
+            if ( res<=0 )
+            {
+                in.readByte();
+                res = 1;
+            }
+            len -= res;
+        }
+    }
+
+    void send( Packet p ) throws IOException
+    {
+        p.writeTo( out );
+        out.flush();
+    }
+
+    /**
+     * Closes the file and the session.
+     */
+    public synchronized void close()
+    {
+        try
+        {
+            if ( handle!=null )
+            {
+                // Response is not awaited, the session is closed anyway
+                Packet p = new Packet( SSH_FXP_CLOSE );
+                p.putInt( nextId++ );
+                p.putString( handle );
+                send( p );
+                handle = null;
+            }
+        }
+        catch (IOException e)
+        {
+            Log.debug( "SFTP: close failed: {}", e );
+        }
+        if ( session!=null )
+            session.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SFTPReader "+path+" window="+window+" requestSize="+requestSize;
+    }
+
+    /**
+     * Error status returned by the server, the stream is still in sync
+     */
+    static class SFTPStatusException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        SFTPStatusException( String msg )
+        {
+            super( msg );
+        }
+    }
+
+    /**
+     * Builds an SFTP packet.
+     */
+    static class Packet
+    {
+        byte[] data = new byte[ 64 ];
+        int len = 5;
+
+        Packet( int type )
+        {
+            data[4] = (byte)type;
+        }
+
+        void ensure( int n )
+        {
+            if ( len+n>data.length )
+            {
+                byte[] d = new byte[ Math.max( 2*data.length, len+n ) ];
+                System.arraycopy( data, 0, d, 0, len );
+                data = d;
+            }
+        }
+
+        void putInt( int v )
+        {
+            ensure( 4 );
+            data[len++] = (byte)(v>>>24);
+            data[len++] = (byte)(v>>>16);
+            data[len++] = (byte)(v>>>8);
+            data[len++] = (byte)v;
+        }
+
+        void putLong( long v )
+        {
+            putInt( (int)(v>>>32) );
+            putInt( (int)v );
+        }
+
+        void putString( byte[] s )
+        {
+            putInt( s.length );
+            ensure( s.length );
+            System.arraycopy( s, 0, data, len, s.length );
+            len += s.length;
+        }
+
+        void writeTo( OutputStream out ) throws IOException
+        {
+            int l = len-4;
+            data[0] = (byte)(l>>>24);
+            data[1] = (byte)(l>>>16);
+            data[2] = (byte)(l>>>8);
+            data[3] = (byte)l;
+            out.write( data, 0, len );
+        }
+    }
+}
@@ -13,12 +13,23 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.fluidops.base.Version;
 import com.fluidops.util.HexDump;
+import com.fluidops.util.IntObjectCache;
+import com.fluidops.util.LRUCache;
 import com.fluidops.util.StringUtil;
 import com.fluidops.util.logging.Debug;
+import com.fluidops.util.logging.Log;
 
 /**
  * The VMware VMFS driver.
@@ -211,8 +222,63 @@ public class VMFSDriver
         public BlockID(int id)
         {
             this.id = id;
-            type = id & 7;
-            toString(); // TODO: clean init
+            type = getType( id );
+            number = getNumber( id );
+            subgroup = getSubgroup( id );
+        }
+        
+        /**
+         * Returns the type of the block ID without creating an object.
+         */
+        public static int getType(int id)
+        {
+            return id & 7;
+        }
+        
+        /**
+         * Returns the block number of the block ID without creating an object.
+         */
+        public static int getNumber(int id)
+        {
+            switch( id & 7 )
+            {
+                case 1:
+                    // type==1: full block address            
+                    // tbz, blk
+                    return ( id&0xffffffff ) >> 6;
+                case 2:
+                    // type==2: sub block address, number==cnum
+                case 3:
+                    // type==3: pointer block address, cnum
+                    return ( id&0xfffffff ) >> 6;
+                case 4:
+                    // type==4: file descriptor, cnum
+                    return ( id >> 22 ) & 0x3ff;
+                default:
+                    return 0;
+            }
+        }
+        
+        /**
+         * Returns the sub group of the block ID without creating an object.
+         */
+        public static int getSubgroup(int id)
+        {
+            switch( id & 7 )
+            {
+                case 1:
+                    return (id&32)!=0 ? 1 : 0;
+                case 2:
+                    // type==2: sub block address, subgroup=rnum
+                case 3:
+                    // type==3: pointer block address, rnum
+                    return (id>>28) & 0xf;
+                case 4:
+                    // type==4: file descriptor, rnum
+                    return (id>>6) & 0x7fff;
+                default:
+                    return 0;
+            }
         }
         
         public String toString()
@@ -227,34 +293,16 @@ public class VMFSDriver
                         s = "NULL(INVALID)";
                     break;
                 case 1:
-                    // type==1: full block address            
-                    // tbz, blk
                     s = "FullBlock";
-                    subgroup = (id&32)!=0 ? 1 : 0;
-                    number = ( id&0xffffffff ) >> 6;
                     break;
                 case 2:
-                    // type==2: sub block address
-                    // number==cnum, subgroup=rnum
                     s = "SubBlock";
-                    subgroup = (id>>28) & 0xf;
-                    number = ( id&0xfffffff ) >> 6;
                     break;
-                
                 case 3:
-                    // type==3: pointer block address
-                    // cnum, rnum
                     s = "PointerBlock";
-                    subgroup = (id>>28) & 0xf;
-                    number = ( id&0xfffffff ) >> 6;
                     break;
-                    
                 case 4:
-                    // type==4: file descriptor
-                    // cnum, rnum
                     s = "FileDescriptor";
-                    subgroup = (id>>6) & 0x7fff;
-                    number = ( id >> 22 ) & 0x3ff;
                     break;
                 default:
                     s = "UNKNOWN";
@@ -310,8 +358,6 @@ public class VMFSDriver
     LVMInfo lvm;
     FSInfo fs;
     
-    boolean hyperverbose;
-    
     /**
      * Reads a block from specified location.
      * @param pos
@@ -378,7 +424,7 @@ public class VMFSDriver
             long areaAddr = getDataBlockAreaAddress( area );
                         
             long res = areaAddr + mod * getDataBlockSize();
-            if ( hyperverbose ) Debug.out.println("blockAddr("+block+")="+res);
+            Log.trace( "blockAddr({})={}", block, res );
             return res;
         }
         
@@ -388,7 +434,7 @@ public class VMFSDriver
             long areaAddress = firstBitmapPos + area * bmp.areaSize;
             
             long res = basePos + areaAddress + bmpMetaSize;
-            if ( hyperverbose ) Debug.out.println("areaAddress("+area+")="+Long.toHexString(res));
+            Log.trace( "areaAddress({})={x}", area, res );
             return res;
         }
         
@@ -430,7 +476,7 @@ public class VMFSDriver
             while ( totalItems > 0 )
             {
                 io.setPosition( pos );
-                Debug.out.println("Bitmap headers @"+Long.toHexString(io.getPosition()));
+                Log.debug( "Bitmap headers @{x}", io.getPosition() );
     
                 byte[] bmpBuf = new byte[ VMFS_BITMAP_ENTRY_SIZE ];
                 for ( int bitmapCount=0; bitmapCount<bmp.count; bitmapCount++)
@@ -464,12 +510,12 @@ public class VMFSDriver
                 
                 long dataAddr = getDataBlockAreaAddress( dataBlockCount );
                 if ( dataAddr!=io.getPosition() )
-                    Debug.err.println("POsition of block "+dataBlockCount+": "+dataAddr+" != "+io.getPosition());
+                    Log.warn( "Position of block {}: {} != {}", dataBlockCount, dataAddr, io.getPosition() );
                 dataBlockCount ++;
                 
                 pos = io.getPosition() + bmp.areaSize - (bmp.count * VMFS_BITMAP_ENTRY_SIZE);
         
-                Debug.out.println("XXX@"+Long.toHexString(io.getPosition())+" itemsLeft="+totalItems);
+                Log.debug( "XXX@{x} itemsLeft={}", io.getPosition(), totalItems );
             }
         }    
     }
@@ -502,7 +548,7 @@ public class VMFSDriver
         while ( totalItems > 0 )
         {
             io.setPosition( pos );
-            Debug.out.println("Bitmap headers @"+Long.toHexString(io.getPosition()));
+            Log.debug( "Bitmap headers @{x}", io.getPosition() );
 
             byte[] bmpBuf = new byte[ 0x400 ];
             for ( int bitmapCount=0; bitmapCount<bmp.count; bitmapCount++)
@@ -536,13 +582,31 @@ public class VMFSDriver
             
             pos = io.getPosition() + dataBlockSize;
     
-            Debug.out.println("XXX@"+Long.toHexString(io.getPosition())+" itemsLeft="+totalItems);
+            Log.debug( "XXX@{x} itemsLeft={}", io.getPosition(), totalItems );
         }
     }
 
     List<ExtentInfo> extents;
     public static final long LVM_SEGMENT_SIZE = 256L * 1024L * 1024L;
     
+    /**
+     * Meta data block cache configuration of the extent devices, 0 pages
+     * disables the cache. Regular file data is read past the cache.
+     */
+    int cachePageSize = Integer.getInteger("com.fluidops.tools.vmfs.cache.pageSize", 65536);
+    int cachePages = Integer.getInteger("com.fluidops.tools.vmfs.cache.pages", 512);
+    boolean cacheOffHeap = Boolean.getBoolean("com.fluidops.tools.vmfs.cache.offHeap");
+    
+    /**
+     * Read-ahead configuration of remote extent devices, a window of 0 chunks
+     * disables the read-ahead. Local devices only use it if enabled explicitly.
+     */
+    int readAheadWindow = Integer.getInteger("com.fluidops.tools.vmfs.readAhead.window", ReadAheadIOAccess.DEFAULT_WINDOW);
+    int readAheadChunkSize = Integer.getInteger("com.fluidops.tools.vmfs.readAhead.chunkSize", ReadAheadIOAccess.DEFAULT_CHUNK_SIZE);
+    int readAheadBuffers = Integer.getInteger("com.fluidops.tools.vmfs.readAhead.buffers", ReadAheadIOAccess.DEFAULT_BUFFERS);
+    int readAheadThreads = Integer.getInteger("com.fluidops.tools.vmfs.readAhead.threads", ReadAheadIOAccess.DEFAULT_THREADS);
+    boolean readAheadLocal = Boolean.getBoolean("com.fluidops.tools.vmfs.readAhead.local");
+    
     /**
      * IOAccess that spans multiple VMFS LVM segments.
      * 
@@ -588,18 +652,103 @@ public class VMFSDriver
 
 		@Override
 		public int read(byte[] buffer, int offset, int size) throws IOException
+		{
+			int res = read( pos, buffer, offset, size );
+			if ( res>0 )
+				pos += res;
+			return res;
+		}
+
+		/**
+		 * Returns the extent holding pos. Fails if there is none for the
+		 * start of a read, the continuation of a read stops there.
+		 */
+		ExtentInfo extentFor( long pos, boolean start ) throws IOException
 		{
 			ExtentInfo ex = getExtentForOffset( pos );
-			if ( ex==null )
+			if ( ex==null && start )
 				throw new IOException("Extent for pos="+pos+" not available");
+			return ex;
+		}
+
+		/**
+		 * Returns the device of the extent, the one below the block cache
+		 * for uncached reads.
+		 */
+		IOAccess device( ExtentInfo ex, boolean cached )
+		{
+			if ( !cached && ex.rf instanceof CachedIOAccess )
+				return ((CachedIOAccess)ex.rf).io;
+			return ex.rf;
+		}
+
+		@Override
+		public int read(long pos, byte[] buffer, int offset, int size) throws IOException
+		{
+			return read( pos, buffer, offset, size, true );
+		}
 
-			long posInExtent = pos - ex.lvm.firstSegment*LVM_SEGMENT_SIZE;
-			
-			if ( (posInExtent+size) > ex.lvm.numberOfSegments*LVM_SEGMENT_SIZE )
-				throw new IOException("IO operation exceeds LVM segment");
+		@Override
+		public int read(long pos, ByteBuffer dst) throws IOException
+		{
+			return read( pos, dst, true );
+		}
+
+		/**
+		 * Reads from the extents, a read crossing the end of an extent
+		 * continues on the next one.
+		 * @param cached false to bypass the meta data block cache
+		 */
+		int read(long pos, byte[] buffer, int offset, int size, boolean cached) throws IOException
+		{
+			int done = 0;
+			while ( done<size )
+			{
+				ExtentInfo ex = extentFor( pos+done, done==0 );
+				if ( ex==null )
+					break;
+				long posInExtent = pos+done - ex.lvm.firstSegment*LVM_SEGMENT_SIZE;
+				int now = (int)Math.min( size-done, ex.lvm.numberOfSegments*LVM_SEGMENT_SIZE - posInExtent );
+
+				int res = device( ex, cached ).read( posInExtent + ex.vmfsBase + 0x1000000L, buffer, offset+done, now );
+				if ( res<=0 )
+					return done==0 ? res : done;
+				done += res;
+				if ( res<now )
+					break;
+			}
+			return done;
+		}
 
-			ex.rf.setPosition( posInExtent + ex.vmfsBase + 0x1000000L );
-			return ex.rf.read(buffer, offset, size);
+		int read(long pos, ByteBuffer dst, boolean cached) throws IOException
+		{
+			int size = dst.remaining();
+			int limit = dst.limit();
+			int done = 0;
+			try
+			{
+				while ( done<size )
+				{
+					ExtentInfo ex = extentFor( pos+done, done==0 );
+					if ( ex==null )
+						break;
+					long posInExtent = pos+done - ex.lvm.firstSegment*LVM_SEGMENT_SIZE;
+					int now = (int)Math.min( size-done, ex.lvm.numberOfSegments*LVM_SEGMENT_SIZE - posInExtent );
+
+					dst.limit( dst.position()+now );
+					int res = device( ex, cached ).read( posInExtent + ex.vmfsBase + 0x1000000L, dst );
+					if ( res<=0 )
+						return done==0 ? res : done;
+					done += res;
+					if ( res<now )
+						break;
+				}
+			}
+			finally
+			{
+				dst.limit( limit );
+			}
+			return done;
 		}
 
 		@Override
@@ -792,7 +941,7 @@ public class VMFSDriver
     	vmfsBase = 0; //0x100000;
 
     	long pos = vmfsBase + 0x200000;
-        Debug.out.println("@"+Long.toHexString(pos));
+        Log.debug( "@{x}", pos );
         rf.setPosition( pos );
         rf.read( header, 0, header.length );
         
@@ -824,7 +973,7 @@ public class VMFSDriver
     {
         readHeartbeat( 0 );
         readHeartbeat( VMFS_HB_NUM-1 );   
-        Debug.out.println( "Heartbeat records present" );
+        Log.debug( "Heartbeat records present" );
     }
 
     /**
@@ -841,7 +990,7 @@ public class VMFSDriver
         long pos = vmfsBase + VMFS_HB_BASE + num*VMFS_HB_SIZE;
         
         rf.setPosition( pos );
-        Debug.out.println("@"+Long.toHexString(pos));
+        Log.debug( "@{x}", pos );
 
         byte[] header = new byte[VMFS_HB_SIZE];
         rf.read( header, 0, header.length );
@@ -857,6 +1006,9 @@ public class VMFSDriver
     /**
      * Reads all heartbeat records, returns only active if onlyActive=true.
      * 
+     * The heartbeat area is read at once and scanned using a struct view,
+     * records are only decoded if they are returned.
+     * 
      * @param onlyActive
      * @return
      * @throws Exception
@@ -864,38 +1016,81 @@ public class VMFSDriver
     public List<HeartbeatRecord> readHeartbeats( boolean onlyActive ) throws Exception
     {
     	List<HeartbeatRecord> res = new ArrayList<HeartbeatRecord>();
+    	
+        long pos = vmfsBase + VMFS_HB_BASE;
+        byte[] area = rf.read( pos, VMFS_HB_NUM*VMFS_HB_SIZE );
+        
+        NativeStruct hbn = NativeStruct.forType( HeartbeatRecord.class );
+        NativeStruct.View v = hbn.view( area, 0 );
+        int magicField = hbn.fieldIndex( "magic" );
         for (int hb=0; hb<VMFS_HB_NUM; hb++)
         {
-            HeartbeatRecord r = readHeartbeat( hb );
+            v.at( hb*VMFS_HB_SIZE );
+            int magic = v.getInt( magicField );
+            if ( magic!=VMFS_HB_MAGIC_ON && magic!=VMFS_HB_MAGIC_OFF )
+                throw new Exception("VMFS heartbeat record "+hb+" @"+(pos+v.getOffset())+" not found - wrong magic number");
             
-            if ( !onlyActive || (onlyActive && r.magic==VMFS_HB_MAGIC_ON) )
+            if ( !onlyActive || magic==VMFS_HB_MAGIC_ON )
             {
+                HeartbeatRecord r = new HeartbeatRecord();
+                v.decode( r );
             	res.add( r );
             }
         }
         return res;
     }
     
-    List<FileRecord> frs;
-    List<FileMetaInfo> fmis;
-    
     /**
-     * Searches the file record for the given file name.
-     * @param fileName
-     * @return Null if record not found
+     * The file records of a directory, indexed by name.
+     * 
+     * @author Uli
      */
-    FileRecord getFileRecord( List<FileRecord> frs, String fileName )
+    public static class DirectoryInfo
     {
-        for ( FileRecord fr : frs )
+        public final List<FileRecord> records;
+        final Map<String, FileRecord> byName;
+        
+        DirectoryInfo( List<FileRecord> records )
         {
-            if ( fr.name__128.equals(fileName) )
+            this.records = records;
+            byName = new HashMap<String, FileRecord>( records.size()*4/3 + 1 );
+            for ( FileRecord fr : records )
             {
-                return fr;
+                // The first record of a name wins, duplicates are ignored
+                if ( !byName.containsKey( fr.name__128 ) )
+                    byName.put( fr.name__128, fr );
             }
-        }                
-        return null;
+        }
+        
+        /**
+         * Searches the file record for the given file name.
+         * @param fileName
+         * @return Null if record not found
+         */
+        public FileRecord get( String fileName )
+        {
+            return byName.get( fileName );
+        }
+        
+        /**
+         * Returns the estimated heap size (in bytes) of this directory.
+         * @return
+         */
+        public long getEstimatedSize()
+        {
+            // Record and name objects plus the index entry per record
+            return 64 + records.size() * (DIR_ENTRY_SIZE + 160L);
+        }
     }
     
+    DirectoryInfo rootDir;
+    
+    /**
+     * File meta info read so far, indexed by file descriptor block ID.
+     */
+    IntObjectCache<FileMetaInfo> fmiCache = new IntObjectCache<FileMetaInfo>(
+    		Integer.getInteger("com.fluidops.tools.vmfs.metaCache.entries", 65536) );
+    
     FileRecord getFileRecord( String path ) throws Exception
     {
     	return _getFileRecord( path, true );
@@ -908,20 +1103,20 @@ public class VMFSDriver
     
     FileRecord _getFileRecord( String path, boolean onlyFiles ) throws Exception
     {
-        List<FileRecord> rs = frs;
+        DirectoryInfo rs = rootDir;
         StringTokenizer st = new StringTokenizer( path, "/" );
         FileRecord fr = null;
         while ( st.hasMoreTokens() )
         {
             String token = st.nextToken();
             
-            fr = getFileRecord( rs, token );
+            fr = rs.get( token );
             if ( fr==null )
                 return null;
 
             if ( fr.isFolder() )
             {
-                rs = getFileRecordsForDirectory(fr);
+                rs = getDirectory(fr);
             }
             else
             {
@@ -937,29 +1132,56 @@ public class VMFSDriver
         	return fr;
     }
 
-    Map<FileRecord, List<FileRecord> > dirCache = new HashMap<FileRecord, List<FileRecord> >();
+    /**
+     * Cache of the directories read so far, indexed by the directory's
+     * file descriptor block ID. Bounded by entries and estimated size.
+     */
+    LRUCache<Integer, DirectoryInfo> dirCache = createDirCache(
+    		Integer.getInteger("com.fluidops.tools.vmfs.dirCache.entries", 4096),
+    		Long.getLong("com.fluidops.tools.vmfs.dirCache.bytes", 64L*1024L*1024L) );
     
-    List<FileRecord> getFileRecordsForDirectory(FileRecord fr)
+    static LRUCache<Integer, DirectoryInfo> createDirCache( int maxEntries, long maxBytes )
+    {
+    	if ( maxEntries<=0 )
+    		return null;
+    	
+    	return new LRUCache<Integer, DirectoryInfo>( maxEntries, maxBytes )
+    	{
+    		@Override
+    		protected long weigh( Integer key, DirectoryInfo value )
+    		{
+    			return value.getEstimatedSize();
+    		}
+    	};
+    }
+    
+    DirectoryInfo getDirectory(FileRecord fr)
             throws IOException, Exception
     {
-        List<FileRecord> rs = dirCache!=null ? dirCache.get(fr) : null;
+        DirectoryInfo rs = dirCache!=null ? dirCache.get(fr.blockId) : null;
         if ( rs!=null )
             return rs;
         
         IOAccess io = new FileIOAccess( getMetaInfo(fr) );
         if ( io.getSize()==0 )
             // empty directory
-            rs = new ArrayList<FileRecord>();
+            rs = new DirectoryInfo( new ArrayList<FileRecord>() );
         else
-            rs = readFileRecords(io, 0, (int)( io.getSize()/DIR_ENTRY_SIZE ) );
+            rs = new DirectoryInfo( readFileRecords(io, 0, (int)( io.getSize()/DIR_ENTRY_SIZE ) ) );
         io.close();
      
         if ( dirCache!=null )
-            dirCache.put( fr, rs );
+            dirCache.put( fr.blockId, rs );
         
         return rs;
     }
     
+    /**
+     * Symlink targets read so far, indexed by the link's descriptor block ID.
+     */
+    IntObjectCache<String> symLinkCache = new IntObjectCache<String>(
+    		Integer.getInteger("com.fluidops.tools.vmfs.symLinkCache.entries", 4096) );
+    
     /**
      * Follow the symlink of the file record.
      * @param fr
@@ -970,15 +1192,20 @@ public class VMFSDriver
     	if ( fr.type==TYPE_SYMLINK )
     	try
     	{
+    		String symLink = symLinkCache.get( fr.blockId );
+    		if ( symLink!=null )
+    			return symLink;
+    		
             IOAccess io = new FileIOAccess( getMetaInfo(fr) );
             int sz = (int) io.getSize();
-            String symLink = new String( io.read(0, sz), "UTF-8" );
+            symLink = new String( io.read(0, sz), "UTF-8" );
             io.close();
+            symLinkCache.put( fr.blockId, symLink );
             return symLink;
     	}
     	catch (Exception ex)
     	{
-    		Debug.err.println("Symlink cannot be followed - ignoring");
+    		Log.warn( "Symlink cannot be followed - ignoring" );
     	}
     	
 		return null;
@@ -993,10 +1220,10 @@ public class VMFSDriver
     public List<FileMetaInfo> dir( String path ) throws Exception
     {
         List<FileMetaInfo> fmis = new ArrayList<FileMetaInfo>();
-        List<FileRecord> frs = _dir( path, null );
-        List<String> names = new ArrayList<String>();
-        if ( frs!=null )
-        for ( FileRecord fr : frs )
+        DirectoryInfo d = _dir( path, null );
+        Set<String> names = new HashSet<String>();
+        if ( d!=null )
+        for ( FileRecord fr : d.records )
         {
             if ( ".".equals(fr.name__128) || "..".equals(fr.name__128) )
                 continue;
@@ -1028,22 +1255,22 @@ public class VMFSDriver
         return fmis;            
     }
     
-    List<FileRecord> _dir( String path, List<String> followed ) throws Exception
+    DirectoryInfo _dir( String path, List<String> followed ) throws Exception
     {
-        List<FileRecord> rs = frs;
+        DirectoryInfo rs = rootDir;
         StringTokenizer st = new StringTokenizer( path, "/" );
         String partialPath = "/";
         while ( st.hasMoreTokens() )
         {
             String token = st.nextToken();
             
-            FileRecord fr = getFileRecord( rs, token );
+            FileRecord fr = rs.get( token );
             if ( fr==null )
                 return null;
 
             if ( fr.type==TYPE_FOLDER )
             {
-                rs = getFileRecordsForDirectory(fr);
+                rs = getDirectory(fr);
             }
             else if ( fr.type==TYPE_SYMLINK )
             {
@@ -1056,8 +1283,10 @@ public class VMFSDriver
             		return null;
             	}
             	followed.add( followLink );
-            	Debug.out.println("Followed link "+fr.name__128+" => "+followLink);
+            	Log.debug( "Followed link {} => {}", fr.name__128, followLink );
             	rs = _dir( followLink, followed );
+            	if ( rs==null )
+            		return null;
             }
             else
             {
@@ -1069,6 +1298,19 @@ public class VMFSDriver
         return rs;
     }
     
+    /**
+     * Cache of resolved paths. Holds the path's file record, or
+     * NOT_FOUND if the path does not exist.
+     */
+    LRUCache<String, FileRecord> pathCache = createPathCache(
+    		Integer.getInteger("com.fluidops.tools.vmfs.pathCache.entries", 65536) );
+    static final FileRecord NOT_FOUND = new FileRecord();
+    
+    static LRUCache<String, FileRecord> createPathCache( int maxEntries )
+    {
+    	return maxEntries>0 ? new LRUCache<String, FileRecord>( maxEntries ) : null;
+    }
+    
     /**
      * Returns the meta info for the given file name.
      * @param fileName
@@ -1079,7 +1321,16 @@ public class VMFSDriver
         FileRecord fr;
         try
         {
-            fr = getFileOrFolderRecord( fileName );
+            fr = pathCache!=null ? pathCache.get( fileName ) : null;
+            if ( fr==null )
+            {
+                fr = getFileOrFolderRecord( fileName );
+                if ( pathCache!=null )
+                    pathCache.put( fileName, fr!=null ? fr : NOT_FOUND );
+            }
+            if ( fr==NOT_FOUND )
+                return null;
+            
             return getMetaInfo( fr );
         }
         catch (Exception e)
@@ -1093,11 +1344,11 @@ public class VMFSDriver
     {
         if ( fr!=null )
         {
-            for ( FileMetaInfo fmi : fmis )
-            if ( fmi.fmr.id==fr.blockId )
+            FileMetaInfo cached = fmiCache.get( fr.blockId );
+            if ( cached!=null )
             {
-                fmi.fr = fr;
-                return fmi;
+                cached.fr = fr;
+                return cached;
             }
             
             // Read file record
@@ -1119,7 +1370,7 @@ public class VMFSDriver
                 if ( fmi.fmr.id==fr.blockId )
                 {
                     fmi.fr = fr;
-                    fmis.add( fmi );
+                    fmiCache.put( fr.blockId, fmi );
                     return fmi;
                 }
                 else
@@ -1142,6 +1393,7 @@ public class VMFSDriver
     public void openVmfs() throws Exception
     {
     	Debug.out.println( "Opening VMFS on IOAccess="+rf );
+    	clearCaches();
     	
     	readVmfsInfo();
         
@@ -1157,15 +1409,21 @@ public class VMFSDriver
             Debug.out.println("FDC base zero = " + Long.toHexString( fdcBaseZero ) );
             
             // Read the superblock file records and meta info
-            frs = readFileRecords( rf, vmfsBase + 0x400000 + ofs + blockSize, 1 );
-            fmis = readFileMetaInfos( rf, fdcBaseZero, 1 );
+            List<FileRecord> frs = readFileRecords( rf, vmfsBase + 0x400000 + ofs + blockSize, 1 );
+            List<FileMetaInfo> fmis = readFileMetaInfos( rf, fdcBaseZero, 1 );
             
             long rootDirSize = fmis.get(0).fmr.size;
             int rootDirEntries = (int) ( rootDirSize / DIR_ENTRY_SIZE );
             frs = readFileRecords( rf, vmfsBase + 0x400000 + ofs + blockSize, rootDirEntries );
             fmis = readFileMetaInfos( rf, fdcBaseZero, 6 );
             
-            if ( !frs.isEmpty() && !fmis.isEmpty() ) break;
+            if ( !frs.isEmpty() && !fmis.isEmpty() )
+            {
+            	rootDir = new DirectoryInfo( frs );
+            	for ( FileMetaInfo fmi : fmis )
+            		fmiCache.put( fmi.fmr.id, fmi );
+            	break;
+            }
         }
         catch (Exception ex)
         {
@@ -1192,10 +1450,17 @@ public class VMFSDriver
         FileMetaInfo fmi;
         long pos;
         
+        /**
+         * Meta files, directories and symlinks are read through the block
+         * cache, regular file data bypasses it.
+         */
+        boolean metaData;
+        
         FileIOAccess( FileMetaInfo fmi ) throws IOException
         {
+            // Pointer blocks are resolved on demand by read
             this.fmi = fmi;
-            fmi.resolvePointerBlocks();
+            metaData = fmi.fmr.type!=TYPE_FILE;
         }
         
         public String toString()
@@ -1224,81 +1489,143 @@ public class VMFSDriver
         @Override
         public int read(byte[] buffer, int offset, int size)
                 throws IOException
+        {
+            int res = read( pos, buffer, offset, size );
+            if ( res>0 )
+                pos += res;
+            return res;
+        }
+
+        @Override
+        public int read(long pos, byte[] buffer, int offset, int size)
+                throws IOException
+        {
+            return read( pos, buffer, offset, null, size, metaData );
+        }
+
+        @Override
+        public int read(long pos, ByteBuffer dst) throws IOException
+        {
+            return read( pos, null, 0, dst, dst.remaining(), metaData );
+        }
+
+        /**
+         * Reads into either the byte array or, if given, the byte buffer.
+         * @param cached false to bypass the meta data block cache
+         */
+        int read(long pos, byte[] buffer, int offset, ByteBuffer dst, int size, boolean cached)
+                throws IOException
         {
             int done = 0;
-            long amountLeft = getSize()-getPosition();
+            long amountLeft = getSize()-pos;
             if ( amountLeft<=0 )
             	return 0;
             
             if ( size>amountLeft )
             	size = (int)amountLeft;
             
+            if ( fmi.blockTab==null )
+                throw new IOException("This file has no allocation table (RDM)");
+            
+            // The extent map is built once per file, a read only needs a
+            // binary search and then walks the extents sequentially
+            ExtentMap map = fmi.getExtentMap( pos );
+            int e = map!=null ? map.find( pos ) : -1;
+            
             while ( size>0 )
             {
-                int bn = (int) (pos / blockSize);
-                
-                if ( fmi.blockTab==null )
-                    throw new IOException("This file has no allocation table (RDM)");
-//                if ( fmi.blockTab.length<=bn )
-//                    throw new IOException("Read beyond end of file: pos="+pos+" file="+fmi);
-                
-                BlockID bid = bn<fmi.blockTab.length ? new BlockID( fmi.blockTab[ bn ] ) : new BlockID(0);                
-                int posInBlock = (int) (pos % blockSize);
-                int maxAmountInBlock = (int) ( blockSize - posInBlock  );
+                int kind = e>=0 ? map.getKind( e ) : ExtentMap.KIND_SPARSE;
+                long maxAmount = e>=0 ? map.getEnd( e )-pos : size;
+                long posInExtent = e>=0 ? pos-map.getStart( e ) : 0;
+                int thisTime = (int)Math.min(size, maxAmount);
+                int res;
                 
-                IOAccess io = rf;
-                long base = vmfsBase; // + 0x1000000L;
-                long blockAddr = (long)bid.number * blockSize;
-
-                //Debug.out.println("Reading from block "+bid.number);
-                long posInDevice = base + blockAddr + posInBlock;
-
-                switch ( bid.type )
+                switch ( kind )
                 {
-                	case 0:
-                		// sparse block
+                	case ExtentMap.KIND_SPARSE:
+                	{
+                		// sparse run, fill result with 0 in one go
+                		if ( dst!=null )
+                		{
+                			for ( int n=thisTime; n>0; n-=ZEROES.length )
+                				dst.put( ZEROES, 0, Math.min( n, ZEROES.length ) );
+                		}
+                		else if ( buffer!=null )
+                			Arrays.fill( buffer, offset, offset+thisTime, (byte)0 );
+                		res = thisTime;
                 		break;
-                    case 1:
+                	}
+                    case ExtentMap.KIND_FULL:
+                    {
+                        // Physically contiguous blocks, single device read
+                        res = readDevice( rf, map.getPhysical( e ) + posInExtent, buffer, offset, dst, thisTime, cached );
                         break;
-                    case 2:
+                    }
+                    case ExtentMap.KIND_SUB:
                     {
-                        io = sbc;
-                        posInBlock = (int) (pos % sbcBmp.getDataBlockSize() );
-                        maxAmountInBlock = (int)sbcBmp.getDataBlockSize() - posInBlock;
-                        posInDevice = sbcBmp.getDataBlockAddress( bid.number*16 + bid.subgroup ) + posInBlock;
+                        int sbSize = (int)sbcBmp.getDataBlockSize();
+                        int posInSubBlock = (int)(posInExtent % sbSize);
+                        thisTime = Math.min(thisTime, sbSize - posInSubBlock);
+                        res = readDevice( sbc, map.getPhysical( e ) + posInSubBlock, buffer, offset, dst, thisTime, cached );
                         break;
                     }
-                    case 3:
-                        throw new IOException("Internal error: PointerBlock should already be resolved");
                     default:
-                        throw new IOException("Internal error: block type "+bid.type+" unexpected");
+                        throw new IOException("Internal error: extent kind "+kind+" unexpected");
                 }
                 
-                int thisTime = Math.min(size, maxAmountInBlock);
-
-                int res;
-                if ( bid.type==0 )
-                {
-                	// sparse block, fill result with 0
-                	if ( buffer!=null )
-                		Arrays.fill( buffer, offset, offset+thisTime, (byte)0 );
-                	res = thisTime;
-                }
-                else
-                	res = io.read( posInDevice, buffer, offset, thisTime );
-                
+                if ( res<0 )
+                    break;
                 done += res;                
-                pos += thisTime;
+                if ( res<thisTime )
+                    break;
                 offset += thisTime;
                 size -= thisTime;
+                pos += thisTime;
                 
-                if ( res<thisTime )
-                    break;
+                if ( e>=0 && pos>=map.getEnd( e ) )
+                {
+                    if ( e+1<map.getCount() )
+                        e++;
+                    else
+                    {
+                        // Continue with the next pointer block
+                        map = fmi.getExtentMap( pos );
+                        e = map!=null ? map.find( pos ) : -1;
+                    }
+                }
             }
             
             return done;
         }
 
+        int readDevice(IOAccess io, long pos, byte[] buffer, int offset, ByteBuffer dst, int size, boolean cached)
+                throws IOException
+        {
+            if ( !cached && io instanceof FileIOAccess )
+                // Sub blocks of a regular file
+                return ((FileIOAccess)io).read( pos, buffer, offset, dst, size, false );
+            
+            if ( dst==null )
+            {
+                if ( !cached && io instanceof ExtentIOAccess )
+                    return ((ExtentIOAccess)io).read( pos, buffer, offset, size, false );
+                return io.read( pos, buffer, offset, size );
+            }
+            
+            int limit = dst.limit();
+            dst.limit( dst.position()+size );
+            try
+            {
+                if ( !cached && io instanceof ExtentIOAccess )
+                    return ((ExtentIOAccess)io).read( pos, dst, false );
+                return io.read( pos, dst );
+            }
+            finally
+            {
+                dst.limit( limit );
+            }
+        }
+
         /**
          * Returns the allocated logical extents of the file.
          * Usefule for sparse ("thin provisioned") files to iterate over
@@ -1306,25 +1633,25 @@ public class VMFSDriver
          * 
          * @return
          */
-        public List<Long> getAllocatedExtents()
+        public List<Long> getAllocatedExtents() throws IOException
         {
         	List<Long> alloc = new ArrayList<Long>();
         	
+        	ExtentMap map = fmi.getExtentMap();
         	long p = 0, sz = 0;
-        	for (int n=0; n<fmi.blockTab.length; n++)
+        	for (int n=0; n<map.getCount(); n++)
         	{
-        		int bid = fmi.blockTab[n];
-        		if ( bid==0 )
+        		if ( map.getKind(n)==ExtentMap.KIND_SPARSE )
         		{
         			if ( sz>0 )
         			{
         				alloc.add( p ); alloc.add( sz );
         			}
-        			p = (long)blockSize * (n+1);
+        			p = map.getEnd(n);
         			sz = 0;
         		}
         		else
-        			sz += blockSize;
+        			sz += map.getLength(n);
         	}
 			if ( sz>0 )
 			{
@@ -1400,9 +1727,9 @@ public class VMFSDriver
      */
     FileRecord readFileRecord( IOAccess io, long pos ) throws Exception
     {
-        Debug.out.println("@"+Long.toHexString(pos));
+        Log.debug( "@{x}", pos );
         
-        NativeStruct frn = new NativeStruct( FileRecord.class );
+        NativeStruct frn = NativeStruct.forType( FileRecord.class );
         //Debug.out.println( frn );
         int recordSize = frn.getSize();
         
@@ -1413,21 +1740,40 @@ public class VMFSDriver
         if ( frBuffer==null || frBuffer.length < frn.size )
             return fr;
         
-        frn.decode( fr, frBuffer, 0 );
+        return decodeFileRecord( frn.view( frBuffer, 0 ) );
+    }
 
-        if ( hyperverbose )
+    /**
+     * Decodes the file record at the current position of the view.
+     * @param v
+     * @return
+     * @throws Exception
+     */
+    FileRecord decodeFileRecord( NativeStruct.View v ) throws Exception
+    {
+        FileRecord fr = new FileRecord();
+        v.decode( fr );
+
+        if ( Log.isTraceEnabled() )
         {
             if ( fr.isFolder() )
-                Debug.out.println("Folder: "+fr.name__128+" Block="+new BlockID(fr.blockId)+ " ID="+Long.toHexString(fr.recordId));
+                Log.trace( "Folder: {} Block={} ID={x}", fr.name__128, new BlockID(fr.blockId), fr.recordId );
             else
-                Debug.out.println("File: "+fr.name__128+" Block="+new BlockID(fr.blockId)+" ID="+Long.toHexString(fr.recordId));
+                Log.trace( "File: {} Block={} ID={x}", fr.name__128, new BlockID(fr.blockId), fr.recordId );
         }
         
         return fr;
     }
 
+    /**
+     * Amount of directory records read with a single I/O.
+     */
+    public static final int DIR_READ_CHUNK = 1024;
+    
     /**
      * Reads file records from the specific location, stops when type==0 is detected.
+     * The records are read in chunks of up to DIR_READ_CHUNK records,
+     * empty records (type==0) are skipped without being decoded.
      * @param pos
      * @return
      * @throws Exception
@@ -1436,20 +1782,279 @@ public class VMFSDriver
     {
         List<FileRecord> res = new ArrayList<FileRecord>();
         
-        FileRecord fr = null;
-        int sz = new NativeStruct(FileRecord.class).getSize();
-        for ( int i=0; i<count; i++ )
+        NativeStruct frn = NativeStruct.forType( FileRecord.class );
+        int sz = frn.getSize();
+        int typeField = frn.fieldIndex( "type" );
+        byte[] chunk = new byte[ Math.min(count, DIR_READ_CHUNK) * sz ];
+        NativeStruct.View v = frn.view( chunk, 0 );
+        for ( int i=0; i<count; )
         {
-            fr = readFileRecord( io, pos );
-            pos += sz;
+            int records = Math.min( count-i, DIR_READ_CHUNK );
+            int len = records * sz;
+            Log.debug( "@{x} records={}", pos, records );
+            
+            // Records not covered by the read remain empty
+            int done = 0;
+            while ( done<len )
+            {
+                int r = io.read( pos+done, chunk, done, len-done );
+                if ( r<=0 )
+                    break;
+                done += r;
+            }
+            Arrays.fill( chunk, done, len, (byte)0 );
+            
+            for ( int ofs=0; ofs<len; ofs+=sz )
+            {
+                v.at( ofs );
+                if ( v.getInt( typeField )!=0 )
+                    res.add( decodeFileRecord( v ) );
+            }
             
-            if ( fr.type!=0 )
-                res.add( fr );
+            pos += len;
+            i += records;
         }
         
         return res;
     }
 
+    /**
+     * Source of zeros for sparse reads into byte buffers
+     */
+    static final byte[] ZEROES = new byte[ 65536 ];
+    
+    IntObjectCache<ExtentMap> ptrCache = new IntObjectCache<ExtentMap>(
+    		Integer.getInteger("com.fluidops.tools.vmfs.pointerCache.entries", 4096) );
+    
+    /**
+     * Creates the extent map of a block table.
+     * @param tab Resolved block table
+     * @param base Logical position of the first block
+     * @return
+     * @throws IOException If the table contains an unexpected block type
+     */
+    ExtentMap createExtentMap( int[] tab, long base ) throws IOException
+    {
+        ExtentMap map = new ExtentMap( base );
+        addBlocks( map, tab, 0, tab.length );
+        map.trim();
+        return map;
+    }
+    
+    /**
+     * Appends the blocks from..from+count-1 of a resolved block table to the map.
+     * @throws IOException If the table contains an unexpected block type
+     */
+    void addBlocks( ExtentMap map, int[] tab, int from, int count ) throws IOException
+    {
+        for ( int n=from; n<from+count; n++ )
+        {
+            int b = tab[n];
+            switch ( BlockID.getType( b ) )
+            {
+                case 0:
+                    // sparse block
+                    map.add( ExtentMap.KIND_SPARSE, -1, blockSize );
+                    break;
+                case 1:
+                    map.add( ExtentMap.KIND_FULL, vmfsBase + (long)BlockID.getNumber( b ) * blockSize, blockSize );
+                    break;
+                case 2:
+                    map.add( ExtentMap.KIND_SUB, sbcBmp.getDataBlockAddress( BlockID.getNumber( b )*16 + BlockID.getSubgroup( b ) ), blockSize );
+                    break;
+                case 3:
+                    throw new IOException("Internal error: PointerBlock should already be resolved");
+                default:
+                    throw new IOException("Internal error: block type "+BlockID.getType( b )+" unexpected");
+            }
+        }
+    }
+    
+    /**
+     * Checks an entry of the pointer block table of a file. The same rule
+     * applies when the file is resolved at once and per pointer block.
+     * @param id
+     * @return true for a pointer block, false for a null entry covering a sparse range
+     * @throws IOException For any other block type
+     */
+    static boolean isPointerBlock( int id ) throws IOException
+    {
+        switch ( BlockID.getType( id ) )
+        {
+            case 0:
+                return false;
+            case 3:
+                return true;
+            default:
+                throw new IOException("Internal error: block type "+BlockID.getType( id )+" unexpected in pointer block table");
+        }
+    }
+    
+    long getPointerBlockAddress( int id )
+    {
+        return pbcBmp.getDataBlockAddress( BlockID.getNumber( id )*16 + BlockID.getSubgroup( id ) );
+    }
+    
+    /**
+     * Returns the extent map of the blocks of a single pointer block.
+     * Resolved pointer blocks are cached by their block ID.
+     * @param id ID of the pointer block, a null entry maps to a sparse range
+     * @param base Logical position of the first block of the pointer block
+     * @param perPtr Amount of entries per pointer block
+     * @return
+     * @throws IOException
+     */
+    ExtentMap getPointerBlockMap( int id, long base, int perPtr ) throws IOException
+    {
+        if ( !isPointerBlock( id ) )
+        {
+            ExtentMap map = new ExtentMap( base );
+            map.add( ExtentMap.KIND_SPARSE, -1, (long)perPtr * blockSize );
+            return map;
+        }
+        
+        ExtentMap map = ptrCache.get( id );
+        if ( map!=null && map.getStart( 0 )==base )
+            return map;
+        
+        if ( Log.isTraceEnabled() )
+            Log.trace( "Resolving pointer block {} @{}", new BlockID( id ), base );
+        int[] tab = new int[ perPtr ];
+        readPointerBlocks( new long[] { getPointerBlockAddress( id ) }, new int[] { 0 }, perPtr*4, tab );
+        map = createExtentMap( tab, base );
+        ptrCache.put( id, map );
+        return map;
+    }
+    
+    /**
+     * Max. amount of bytes read from the pointer block file at once
+     */
+    static final int PTR_READ_CHUNK = 1024*1024;
+    
+    /**
+     * Amount of threads resolving the pointer blocks of a file, 1 to resolve sequentially
+     */
+    int pointerBlockThreads = Integer.getInteger("com.fluidops.tools.vmfs.pointerBlocks.threads", 1);
+    
+    /**
+     * Threads resolving pointer blocks, shared by all files of the volume
+     */
+    ExecutorService pointerBlockPool;
+    
+    synchronized ExecutorService getPointerBlockPool()
+    {
+        if ( pointerBlockPool==null )
+            pointerBlockPool = Executors.newFixedThreadPool( pointerBlockThreads, new ThreadFactory()
+            {
+                public Thread newThread( Runnable r )
+                {
+                    Thread t = new Thread( r, "PointerBlocks" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        return pointerBlockPool;
+    }
+    
+    synchronized void shutdownPointerBlockPool()
+    {
+        if ( pointerBlockPool!=null )
+            pointerBlockPool.shutdownNow();
+        pointerBlockPool = null;
+    }
+    
+    /**
+     * Reads pointer blocks and decodes their entries into the block table.
+     * Pointer blocks that are adjacent both in the pointer block file and
+     * in the table are read with a single request and decoded in one go.
+     * 
+     * @param addr Address of each pointer block in the pointer block file
+     * @param dest Start index of each pointer block's entries in the table
+     * @param ptrSize Size of a pointer block
+     * @param table The block table to fill
+     * @throws IOException
+     */
+    void readPointerBlocks( final long[] addr, final int[] dest, final int ptrSize, final int[] table ) throws IOException
+    {
+        final int perPtr = ptrSize/4;
+        final int maxRun = Math.max( 1, PTR_READ_CHUNK/ptrSize );
+        
+        // Split into runs of contiguous pointer blocks, runStart[r]..runStart[r+1]-1
+        int[] runStart = new int[ addr.length+1 ];
+        int runs = 0;
+        for ( int k=0; k<addr.length; k++ )
+        {
+            if ( k==0 || k-runStart[runs-1]>=maxRun 
+                    || addr[k]!=addr[k-1]+ptrSize || dest[k]!=dest[k-1]+perPtr )
+                runStart[runs++] = k;
+        }
+        runStart[runs] = addr.length;
+        
+        int threads = Math.min( pointerBlockThreads, runs );
+        if ( threads<=1 )
+        {
+            byte[] buf = new byte[ Math.min( addr.length, maxRun ) * ptrSize ];
+            for ( int r=0; r<runs; r++ )
+                readPointerBlockRun( addr, dest, runStart[r], runStart[r+1], ptrSize, table, buf );
+            return;
+        }
+        
+        ExecutorService pool = getPointerBlockPool();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try
+        {
+            for ( int r=0; r<runs; r++ )
+            {
+                final int from = runStart[r], to = runStart[r+1];
+                futures.add( pool.submit( new Callable<Void>()
+                {
+                    public Void call() throws IOException
+                    {
+                        readPointerBlockRun( addr, dest, from, to, ptrSize, table, new byte[ (to-from)*ptrSize ] );
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Void> f : futures )
+                f.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while resolving pointer blocks");
+        }
+        catch (ExecutionException e)
+        {
+            if ( e.getCause() instanceof IOException )
+                throw (IOException)e.getCause();
+            throw new RuntimeException( e.getCause() );
+        }
+        finally
+        {
+            // Runs not started yet are not needed anymore after a failure
+            for ( Future<Void> f : futures )
+                f.cancel( false );
+        }
+    }
+    
+    /**
+     * Reads the pointer blocks from..to-1 with a single request.
+     */
+    void readPointerBlockRun( long[] addr, int[] dest, int from, int to, int ptrSize, int[] table, byte[] buf ) throws IOException
+    {
+        int len = (to-from)*ptrSize;
+        int done = 0;
+        while ( done<len )
+        {
+            int res = pbc.read( addr[from]+done, buf, done, len-done );
+            if ( res<=0 )
+                throw new IOException("Pointer block @"+Long.toHexString(addr[from]+done)+" cannot be read");
+            done += res;
+        }
+        ByteBuffer.wrap( buf, 0, len ).order( ByteOrder.LITTLE_ENDIAN )
+            .asIntBuffer().get( table, dest[from], len/4 );
+    }
+
     /**
      * Class that holds the file meta structs. 
      * @author Uli
@@ -1460,56 +2065,114 @@ public class VMFSDriver
         public FileMetaHeader fmh;
         public FileMetaRecord fmr;
         public RDMMetaRecord rdm;
+        /**
+         * Block table of the file descriptor, for large files the pointer blocks
+         */
         public int[] blockTab;
         public boolean resolvedPointers;
         public String fullPath="?";
+        int[] ptrTab;
+        volatile ExtentMap extentMap;
         
         /**
-         * Checks if this file meta data has pointer blocks,
-         * and resolves them.
+         * Returns the extent map of the whole file, built once from the
+         * block table or the pointer blocks and shared by all readers of
+         * the file.
+         * @return
          */
-        synchronized void resolvePointerBlocks() throws IOException
+        synchronized ExtentMap getExtentMap() throws IOException
         {
-            if ( resolvedPointers )
-                return;
-
-            resolvedPointers = true;
-
-            if ( blockTab==null )
-                // RDM files have no block allocations
-                return;
-
-            List<Integer> res = new ArrayList<Integer>();
-            
-            for ( int b : blockTab )
+            if ( extentMap==null )
             {
-                BlockID bid = new BlockID( b );
-                if ( bid.type==3 )
-                {
-                    Debug.out.println("Resolving "+this+" => "+bid);
-                    
-                    // Pointer block
-                    long addr = pbcBmp.getDataBlockAddress( bid.number*16 + bid.subgroup );
-                    byte[] p = pbc.read( addr, (int)pbcBmp.getDataBlockSize() );
-                    for ( int i=0; i<p.length/4; i++ )
-                    {
-                        int block = (p[4*i] & 0xff)
-                            + ((p[4*i+1] & 0xff) << 8)
-                            + ((p[4*i+2] & 0xff) << 16)
-                            + ((p[4*i+3] & 0xff) << 24);
-                        res.add( block );                        
-                    }
-                }
-                else
-                    res.add( b );
+                ExtentMap map = ptrTab!=null ? resolvePointerBlocks() : createExtentMap( blockTab, 0 );
+                resolvedPointers = true;
+                if ( Log.isTraceEnabled() )
+                    Log.trace( "Extent map of {}/{}: {}", fullPath, fr.name__128, map );
+                extentMap = map;
             }
+            return extentMap;
+        }
+        
+        /**
+         * Returns an extent map covering the logical position. For files
+         * with pointer blocks this is the map of the single pointer block
+         * covering the position, resolved on demand, so reads do not need
+         * the whole block table. Returns null beyond the block table.
+         * @param pos
+         * @return
+         * @throws IOException
+         */
+        ExtentMap getExtentMap( long pos ) throws IOException
+        {
+            ExtentMap map = extentMap;
+            if ( map!=null || ptrTab==null )
+                return map!=null ? map : getExtentMap();
+            
+            int perPtr = (int)pbcBmp.getDataBlockSize()/4;
+            long segSize = (long)perPtr * blockSize;
+            long idx = pos / segSize;
+            if ( idx<0 || idx>=ptrTab.length )
+                return null;
+            return getPointerBlockMap( ptrTab[(int)idx], idx*segSize, perPtr );
+        }
+        
+        /**
+         * Resolves the pointer blocks into the extent map of the file.
+         * The pointer blocks are read in batches into a reused table, the
+         * expanded block table of the whole file is never held.
+         * @return
+         * @throws IOException
+         */
+        ExtentMap resolvePointerBlocks() throws IOException
+        {
+            // Each entry covers the blocks of one pointer block, null entries stay sparse
+            int ptrCount = 0;
+            for ( int b : ptrTab )
+                if ( isPointerBlock( b ) )
+                    ptrCount++;
             
-            if ( res.size()!=blockTab.length )
+            Log.debug( "Resolving {} pointer blocks of {}", ptrCount, this );
+            
+            int ptrSize = (int)pbcBmp.getDataBlockSize();
+            int perPtr = ptrSize/4;
+            int batch = Math.min( ptrCount, Math.max( 1, PTR_READ_CHUNK/ptrSize ) * Math.max( 1, pointerBlockThreads ) );
+            
+            int[] tab = new int[ batch*perPtr ];
+            long[] ptrAddr = new long[ batch ];
+            int[] ptrDest = new int[ batch ];
+            ExtentMap map = new ExtentMap( 0 );
+            int i = 0;
+            while ( i<ptrTab.length )
             {
-                blockTab = new int[ res.size() ];
-                for ( int i=0; i<blockTab.length; i++ )
-                    blockTab[i] = res.get(i);
+                // The next batch of pointer blocks, with the null entries between them
+                int end = i, k = 0;
+                for ( ; end<ptrTab.length; end++ )
+                {
+                    int b = ptrTab[end];
+                    if ( !isPointerBlock( b ) )
+                        continue;
+                    if ( k==batch )
+                        break;
+                    ptrAddr[k] = getPointerBlockAddress( b );
+                    ptrDest[k] = k*perPtr;
+                    k++;
+                }
+                if ( k>0 )
+                    readPointerBlocks( k<batch ? Arrays.copyOf( ptrAddr, k ) : ptrAddr,
+                            k<batch ? Arrays.copyOf( ptrDest, k ) : ptrDest, ptrSize, tab );
+                
+                k = 0;
+                for ( int j=i; j<end; j++ )
+                {
+                    if ( isPointerBlock( ptrTab[j] ) )
+                        addBlocks( map, tab, perPtr*k++, perPtr );
+                    else
+                        map.add( ExtentMap.KIND_SPARSE, -1, (long)perPtr * blockSize );
+                }
+                i = end;
             }
+            map.trim();
+            return map;
         }
         
         /**
@@ -1582,7 +2245,7 @@ public class VMFSDriver
     {
         FileMetaInfo res = new FileMetaInfo();
         
-        Debug.out.println("@"+Long.toHexString(pos));
+        Log.debug( "@{x}", pos );
         if ( (io.getSize() > 0) && (pos+0x800 > io.getSize()) )
         {
             throw new IOException("File meta info after EOF @Pos="+pos+" : "+io);
@@ -1603,37 +2266,40 @@ public class VMFSDriver
         
         NativeStruct.fromNative( fmr, header, 0x200 );
         //HexDump.dump( header );
-        Debug.out.println( "Type="+fmr.type+" id="+ new BlockID(fmr.id) + " size=0x"+ Long.toHexString(fmr.size)+" / "+fmr.size+" date="+new java.util.Date(1000L*fmr.timeStamp1__0x2c) );
+        if ( Log.isDebugEnabled() )
+            Log.debug( "Type={} id={} size=0x{x} / {} date={}", fmr.type, new BlockID(fmr.id), fmr.size, fmr.size, new java.util.Date(1000L*fmr.timeStamp1__0x2c) );
 
         if ( fmr.type==6 )
         {
-            Debug.out.println( "RDM mapped file" );
+            Log.debug( "RDM mapped file" );
             
             RDMMetaRecord rdmRec = new RDMMetaRecord();
             res.rdm = rdmRec;
             
             NativeStruct.fromNative( rdmRec, header, 0x400 );
-            Debug.out.println("RDM type = "+rdmRec.lunType__28);
-            Debug.out.println("RDM UUID = "+rdmRec.lunUuid__17);
-            Debug.out.println("RDM blocks = "+rdmRec.blocks);            
+            Log.debug( "RDM type = {}", rdmRec.lunType__28 );
+            Log.debug( "RDM UUID = {}", rdmRec.lunUuid__17 );
+            Log.debug( "RDM blocks = {}", rdmRec.blocks );            
         }
         else
         {
             int blocks = (int) ( (fmr.size + blockSize - 1) / blockSize );
-            Debug.out.println("Blocks = " + blocks);
-            if ( blocks>256 )
+            Log.debug( "Blocks = {}", blocks );
+            boolean pointers = blocks>256;
+            if ( pointers )
             {
                 // Each pointer represents 1024 blocks
                 // TODO: do we have a block size dependency?
                 blocks = (blocks+1023)/1024;
                 
-                if ( hyperverbose )
-                    Debug.out.println("Blocks to pointers = "+blocks);
+                Log.trace( "Blocks to pointers = {}", blocks );
             }
             if ( blocks<256 )
             {
                 int[] blockTab = new int[blocks];
                 res.blockTab = blockTab;
+                if ( pointers )
+                    res.ptrTab = blockTab;
                 for (int i = 0; i < blocks; i++)
                 {
                     blockTab[i] = (header[4*i+0x400] & 0xff)
@@ -1641,10 +2307,8 @@ public class VMFSDriver
                             + ((header[4*i+0x402] & 0xff) << 16)
                             + ((header[4*i+0x403] & 0xff) << 24);
 
-                    BlockID b = new BlockID( blockTab[i] );
-                    
-                    if ( hyperverbose )
-                        Debug.out.println("Block" + i + " = " + b );
+                    if ( Log.isTraceEnabled() )
+                        Log.trace( "Block{} = {}", i, new BlockID( blockTab[i] ) );
                 }
             }
         }
@@ -1675,14 +2339,56 @@ public class VMFSDriver
         return res;
     }
 
+    /**
+     * Returns hit/miss/eviction statistics of the driver's caches.
+     * @return
+     */
+    public String getCacheStatistics()
+    {
+    	String res = "Path cache: "+pathCache+"\n"
+    		+ "Directory cache: "+dirCache+"\n"
+    		+ "File meta info cache: "+fmiCache+"\n"
+    		+ "Symlink cache: "+symLinkCache+"\n"
+    		+ "Pointer block cache: "+ptrCache+"\n";
+    	if ( extents!=null )
+    		for (ExtentInfo ex : extents)
+    		{
+    			IOAccess io = ex.rf;
+    			if ( io instanceof CachedIOAccess )
+    			{
+    				res += "Block cache: "+((CachedIOAccess)io).pages+"\n";
+    				io = ((CachedIOAccess)io).io;
+    			}
+    			if ( io instanceof ReadAheadIOAccess )
+    				res += "Read-ahead: "+((ReadAheadIOAccess)io).getStatistics()+"\n";
+    		}
+    	return res;
+    }
+    
     /**
      * Closes the volume.
      * @throws IOException
      */
     public void closeVolume() throws IOException
     {
+    	if ( Log.isDebugEnabled() )
+    		Log.debug( getCacheStatistics() );
         if ( rf!=null ) rf.close();
         extents = null;
+        clearCaches();
+        shutdownPointerBlockPool();
+    }
+    
+    /**
+     * Drops the cached meta data, it belongs to the volume opened so far.
+     */
+    void clearCaches()
+    {
+    	if ( pathCache!=null ) pathCache.clear();
+    	if ( dirCache!=null ) dirCache.clear();
+    	if ( fmiCache!=null ) fmiCache.clear();
+    	if ( symLinkCache!=null ) symLinkCache.clear();
+    	if ( ptrCache!=null ) ptrCache.clear();
     }
     
     /**
@@ -1705,13 +2411,48 @@ public class VMFSDriver
     {
         // Open the volume for VMFS analysis
         if ( file.startsWith("ssh://"))
-            setVolumeIOAccess( new RemoteSSHIOAccess( file, false ) );
+            setVolumeIOAccess( readAheadIOAccess( new RemoteSSHIOAccess( file, false ), true ) );
         else if ( file.startsWith("http://"))
-        	setVolumeIOAccess( providerIOAccess(file) );
+        	setVolumeIOAccess( readAheadIOAccess( providerIOAccess(file), true ) );
         else if ( file.startsWith("file://")) 
-        	setVolumeIOAccess( new RandomIOAccess( new File(new URI(file)).getAbsolutePath(), "r" ) );
+        	setVolumeIOAccess( readAheadIOAccess( new RandomIOAccess( new File(new URI(file)).getAbsolutePath(), "r" ), false ) );
+        else if ( file.startsWith("mmap://"))
+        	setVolumeIOAccess( mappedIOAccess( file.substring("mmap://".length()) ) );
         else
-        	setVolumeIOAccess( new RandomIOAccess( file, "r" ) );
+        	setVolumeIOAccess( readAheadIOAccess( new RandomIOAccess( file, "r" ), false ) );
+    }
+    
+    /**
+     * Puts the read-ahead layer in front of the device if configured.
+     * @param io The device
+     * @param remote Remote devices use read-ahead by default
+     * @return
+     */
+    IOAccess readAheadIOAccess( IOAccess io, boolean remote )
+    {
+    	if ( readAheadWindow<=0 || !(remote || readAheadLocal) )
+    		return io;
+    	return new ReadAheadIOAccess( io, readAheadChunkSize, readAheadWindow, readAheadBuffers, readAheadThreads );
+    }
+    
+    /**
+     * Opens the local file or device memory mapped, falls back to
+     * regular random access if the mapping is not possible.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    IOAccess mappedIOAccess( String file ) throws IOException
+    {
+        try
+        {
+            return new MappedIOAccess( file );
+        }
+        catch (IOException ex)
+        {
+            System.err.println("Memory mapping of "+file+" failed, fallback to random access: "+ex);
+            return new RandomIOAccess( file, "r" );
+        }
     }
     
     private IOAccess providerIOAccess(String file) throws IOException, URISyntaxException
@@ -1747,6 +2488,10 @@ public class VMFSDriver
      */
     public void setVolumeIOAccess( IOAccess io ) throws IOException
     {
+    	// Put the meta data block cache in front of the device
+    	if ( cachePages>0 )
+    		io = new CachedIOAccess( io, cachePageSize, cachePages, cacheOffHeap );
+    	
     	// Open the VMFS extent (throws exception if no VMFS present)
     	ExtentInfo ex = new ExtentInfo( io );
     	
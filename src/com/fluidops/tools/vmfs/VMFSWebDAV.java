@@ -233,6 +233,9 @@ public class VMFSWebDAV implements ResourceFactory, Initable
 				e.printStackTrace();
 			}
 			ps.println("</pre>");
+			ps.println("<h1>Cache Statistics</h1><pre>");
+			ps.print(vmfs.getCacheStatistics());
+			ps.println("</pre>");
 			ps.println("<h1>Folder "+intern(path)+"</h1>");
 			
 			ps.println("<table border='0' cellpadding=5><tr><th>Name</th><th>Size</th><th>Date</th></tr>");
@@ -0,0 +1,251 @@
+/*
+ * IntObjectCache.java // com.fluidops.util
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A bounded cache with primitive int keys.
+ *
+ * Uses an open addressing hash table (no boxing, no entry objects) and
+ * CLOCK eviction once the max. amount of entries is reached. Lookups
+ * only take a shared lock, so concurrent readers do not block each other.
+ *
+ * @author Uli
+ */
+public class IntObjectCache<V>
+{
+    int[] keys;
+    Object[] values;
+    boolean[] referenced;
+    int mask;
+    int maxEntries;
+    int size;
+    int hand;
+
+    ReadWriteLock lock = new ReentrantReadWriteLock();
+    AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+    /**
+     * Creates a cache holding up to maxEntries entries.
+     * @param maxEntries
+     */
+    public IntObjectCache( int maxEntries )
+    {
+        if ( maxEntries<=0 )
+            throw new IllegalArgumentException("Illegal cache size: "+maxEntries);
+
+        this.maxEntries = maxEntries;
+
+        // Keep the load factor at or below 0.5
+        int capacity = 16;
+        while ( capacity < 2*maxEntries )
+            capacity <<= 1;
+
+        keys = new int[ capacity ];
+        values = new Object[ capacity ];
+        referenced = new boolean[ capacity ];
+        mask = capacity-1;
+    }
+
+    static int hash( int key )
+    {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the slot of the key, or -1 if not present.
+     */
+    int find( int key )
+    {
+        for ( int i=hash(key) & mask; values[i]!=null; i=(i+1) & mask )
+            if ( keys[i]==key )
+                return i;
+        return -1;
+    }
+
+    /**
+     * Returns the cached value, or null if not present.
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V get( int key )
+    {
+        lock.readLock().lock();
+        try
+        {
+            int i = find( key );
+            if ( i<0 )
+            {
+                misses.incrementAndGet();
+                return null;
+            }
+            // Benign race: concurrent readers only ever set the flag
+            referenced[i] = true;
+            hits.incrementAndGet();
+            return (V)values[i];
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the value to the cache, evicts an entry if the cache is full.
+     * @param key
+     * @param value
+     */
+    public void put( int key, V value )
+    {
+        if ( value==null )
+            throw new IllegalArgumentException("null values not supported");
+
+        lock.writeLock().lock();
+        try
+        {
+            int i = find( key );
+            if ( i>=0 )
+            {
+                values[i] = value;
+                referenced[i] = true;
+                return;
+            }
+
+            if ( size>=maxEntries )
+                evict();
+
+            for ( i=hash(key) & mask; values[i]!=null; i=(i+1) & mask )
+                ;
+            keys[i] = key;
+            values[i] = value;
+            referenced[i] = false;
+            size++;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the entry with the given key.
+     * @param key
+     */
+    public void remove( int key )
+    {
+        lock.writeLock().lock();
+        try
+        {
+            int i = find( key );
+            if ( i>=0 )
+                delete( i );
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * CLOCK eviction: advances the hand over the table, clearing the
+     * reference flags, and removes the first unreferenced entry.
+     */
+    void evict()
+    {
+        for (;;)
+        {
+            hand = (hand+1) & mask;
+            if ( values[hand]==null )
+                continue;
+            if ( referenced[hand] )
+                referenced[hand] = false;
+            else
+            {
+                delete( hand );
+                evictions.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deletes the given slot, shifts back following entries of the
+     * probe sequence so lookups do not need tombstones.
+     */
+    void delete( int i )
+    {
+        values[i] = null;
+        size--;
+        for ( int j=(i+1) & mask; values[j]!=null; j=(j+1) & mask )
+        {
+            int home = hash( keys[j] ) & mask;
+            // Move the entry if its home slot is not within (i, j]
+            if ( ((j-home) & mask) >= ((j-i) & mask) )
+            {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                referenced[i] = referenced[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    public void clear()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            java.util.Arrays.fill( values, null );
+            size = 0;
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    public String toString()
+    {
+        return "entries="+size()+"/"+maxEntries+" hits="+hits+" misses="+misses+" evictions="+evictions;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * LRUCache.java // com.fluidops.util
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache with least recently used eviction.
+ * Keeps hit, miss and eviction counters.
+ *
+ * The cache is bounded by the amount of entries and, optionally, by the
+ * total weight of the entries as computed by {@link #weigh(Object, Object)}.
+ *
+ * Larger caches are split into segments by the hash of the key, each with
+ * its own lock, so concurrent lookups of different keys rarely contend.
+ * The bounds apply to the whole cache. A put evicts the least recently
+ * used entries of its own segment first and then the eldest entries of
+ * the other segments, so the eviction order is only approximately LRU.
+ *
+ * @author Uli
+ */
+public class LRUCache<K, V>
+{
+    /**
+     * Max. amount of segments
+     */
+    static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Min. amount of entries per segment, smaller caches use fewer segments
+     */
+    static final int MIN_SEGMENT_ENTRIES = 64;
+
+    /**
+     * Part of the cache with its own lock and LRU order.
+     */
+    static class Segment<K, V>
+    {
+        LinkedHashMap<K, V> map = new LinkedHashMap<K, V>( 16, 0.75f, true );
+        long hits, misses, evictions;
+    }
+
+    Segment<K, V>[] segments;
+    int maxEntries;
+    long maxWeight;
+    AtomicInteger size = new AtomicInteger();
+    AtomicLong weight = new AtomicLong();
+
+    /**
+     * Creates a cache holding up to maxEntries entries.
+     * @param maxEntries
+     */
+    public LRUCache( int maxEntries )
+    {
+        this( maxEntries, Long.MAX_VALUE );
+    }
+
+    /**
+     * Creates a cache holding up to maxEntries entries with a total
+     * weight of up to maxWeight.
+     * @param maxEntries
+     * @param maxWeight
+     */
+    public LRUCache( int maxEntries, long maxWeight )
+    {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+
+        int n = 1;
+        while ( n<MAX_SEGMENTS && 2L*n*MIN_SEGMENT_ENTRIES<=maxEntries )
+            n <<= 1;
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] s = (Segment<K, V>[])new Segment<?, ?>[ n ];
+        segments = s;
+        for ( int i=0; i<n; i++ )
+            segments[i] = new Segment<K, V>();
+    }
+
+    Segment<K, V> segmentFor( Object key )
+    {
+        int h = key.hashCode() * 0x9e3779b9;
+        return segments[ (h ^ (h >>> 16)) & (segments.length-1) ];
+    }
+
+    /**
+     * Returns the weight of an entry, e.g. its estimated size in bytes.
+     * Override to bound the cache by weight, the default weight is 0.
+     * @param key
+     * @param value
+     * @return
+     */
+    protected long weigh( K key, V value )
+    {
+        return 0;
+    }
+
+    /**
+     * Returns the cached value, or null if not present.
+     * @param key
+     * @return
+     */
+    public V get( K key )
+    {
+        Segment<K, V> seg = segmentFor( key );
+        synchronized ( seg )
+        {
+            V v = seg.map.get( key );
+            if ( v!=null )
+                seg.hits++;
+            else
+                seg.misses++;
+            return v;
+        }
+    }
+
+    /**
+     * Adds the value to the cache, evicts least recently used entries
+     * while the cache exceeds its bounds.
+     * @param key
+     * @param value
+     */
+    public void put( K key, V value )
+    {
+        Segment<K, V> seg = segmentFor( key );
+        if ( !putAndEvict( seg, key, value ) )
+            evictOthers( seg );
+    }
+
+    /**
+     * Adds the value and evicts entries of its segment.
+     * @return false if the cache still exceeds its bounds
+     */
+    boolean putAndEvict( Segment<K, V> seg, K key, V value )
+    {
+        synchronized ( seg )
+        {
+            V old = seg.map.put( key, value );
+            if ( old!=null )
+                weight.addAndGet( -weigh( key, old ) );
+            else
+                size.incrementAndGet();
+            long w = weigh( key, value );
+            weight.addAndGet( w );
+
+            // The new entry is the most recently used one, it only goes if it exceeds the bounds alone
+            Iterator<Map.Entry<K, V>> it = seg.map.entrySet().iterator();
+            while ( exceeded() && it.hasNext() )
+            {
+                Map.Entry<K, V> eldest = it.next();
+                if ( !it.hasNext() && maxEntries>0 && w<=maxWeight )
+                    break;
+                weight.addAndGet( -weigh( eldest.getKey(), eldest.getValue() ) );
+                size.decrementAndGet();
+                it.remove();
+                seg.evictions++;
+            }
+        }
+        return !exceeded();
+    }
+
+    /**
+     * Evicts the eldest entries of the other segments until the cache is
+     * within its bounds. Locks one segment at a time.
+     */
+    void evictOthers( Segment<K, V> own )
+    {
+        boolean evicted = true;
+        while ( evicted && exceeded() )
+        {
+            evicted = false;
+            for ( Segment<K, V> seg : segments )
+            {
+                if ( seg==own )
+                    continue;
+                synchronized ( seg )
+                {
+                    if ( !exceeded() )
+                        return;
+                    Iterator<Map.Entry<K, V>> it = seg.map.entrySet().iterator();
+                    if ( !it.hasNext() )
+                        continue;
+                    Map.Entry<K, V> eldest = it.next();
+                    weight.addAndGet( -weigh( eldest.getKey(), eldest.getValue() ) );
+                    size.decrementAndGet();
+                    it.remove();
+                    seg.evictions++;
+                    evicted = true;
+                }
+            }
+        }
+    }
+
+    boolean exceeded()
+    {
+        return size.get()>maxEntries || weight.get()>maxWeight;
+    }
+
+    public void remove( K key )
+    {
+        Segment<K, V> seg = segmentFor( key );
+        synchronized ( seg )
+        {
+            V old = seg.map.remove( key );
+            if ( old!=null )
+            {
+                weight.addAndGet( -weigh( key, old ) );
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    public void clear()
+    {
+        for ( Segment<K, V> seg : segments )
+        {
+            synchronized ( seg )
+            {
+                for ( Map.Entry<K, V> e : seg.map.entrySet() )
+                    weight.addAndGet( -weigh( e.getKey(), e.getValue() ) );
+                size.addAndGet( -seg.map.size() );
+                seg.map.clear();
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size.get();
+    }
+
+    public long getWeight()
+    {
+        return weight.get();
+    }
+
+    public long getHits()
+    {
+        long res = 0;
+        for ( Segment<K, V> seg : segments )
+            synchronized ( seg )
+            {
+                res += seg.hits;
+            }
+        return res;
+    }
+
+    public long getMisses()
+    {
+        long res = 0;
+        for ( Segment<K, V> seg : segments )
+            synchronized ( seg )
+            {
+                res += seg.misses;
+            }
+        return res;
+    }
+
+    public long getEvictions()
+    {
+        long res = 0;
+        for ( Segment<K, V> seg : segments )
+            synchronized ( seg )
+            {
+                res += seg.evictions;
+            }
+        return res;
+    }
+
+    public String toString()
+    {
+        String res = "entries="+size()+"/"+maxEntries;
+        if ( maxWeight!=Long.MAX_VALUE )
+            res += " weight="+getWeight()+"/"+maxWeight;
+        return res+" hits="+getHits()+" misses="+getMisses()+" evictions="+getEvictions();
+    }
+}
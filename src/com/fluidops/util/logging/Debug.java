@@ -54,11 +54,28 @@ public class Debug
             out = new PrintStream( new NullStream() );
             err = new PrintStream( new NullStream() );
         }
+        Log.setLevel( debug ? Log.DEBUG : Log.OFF );
         
     }
     
+    /**
+     * Makes sure the global properties are applied, does nothing else.
+     */
+    static void init()
+    {
+    }
+    
     static
     {
         setDebug( Boolean.getBoolean("com.fluidops.util.logging.debug") );
+        
+        String level = System.getProperty("com.fluidops.util.logging.level");
+        if ( level!=null )
+        {
+            int l = Log.parseLevel( level );
+            if ( l<=Log.DEBUG )
+                setDebug( true );
+            Log.setLevel( l );
+        }
     }
 }
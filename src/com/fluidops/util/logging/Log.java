@@ -0,0 +1,211 @@
+/*
+ * Log.java // com.fluidops.util.logging
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.util.logging;
+
+/**
+ * Logging facade with level checks and parameterized messages.
+ *
+ * Messages are only formatted if their level is enabled, so a disabled
+ * call costs a level check. Placeholders: {} prints the argument, {x}
+ * prints a numeric argument in hex. Arguments are only converted to
+ * strings when the message is printed, so objects with expensive
+ * toString methods can be passed as is. Call sites that would have to
+ * create objects just for logging should check the level first.
+ *
+ * Debug and trace messages are printed to the {@link Debug} stream, info
+ * messages to stdout, warnings and errors to stderr. The level is set
+ * from the global property com.fluidops.util.logging.level, or follows
+ * {@link Debug#setDebug(boolean)}.
+ *
+ * @author Uli
+ */
+public class Log
+{
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+    public static final int OFF = 5;
+
+    static final String[] LEVEL_NAMES = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "OFF" };
+
+    static volatile int level = OFF;
+
+    static
+    {
+        // The level is set from the global properties by Debug
+        Debug.init();
+    }
+
+    public static void setLevel( int level )
+    {
+        Log.level = level;
+    }
+
+    public static int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * Returns the level with the given name, e.g. "debug".
+     * @param name
+     * @return
+     */
+    public static int parseLevel( String name )
+    {
+        for ( int i=0; i<LEVEL_NAMES.length; i++ )
+            if ( LEVEL_NAMES[i].equalsIgnoreCase( name.trim() ) )
+                return i;
+        throw new IllegalArgumentException("Unknown log level: "+name);
+    }
+
+    public static boolean isEnabled( int l )
+    {
+        return l>=level;
+    }
+
+    public static boolean isTraceEnabled()
+    {
+        return TRACE>=level;
+    }
+
+    public static boolean isDebugEnabled()
+    {
+        return DEBUG>=level;
+    }
+
+    public static void trace( String msg )
+    {
+        if ( TRACE>=level ) print( TRACE, msg );
+    }
+
+    public static void trace( String format, Object arg )
+    {
+        if ( TRACE>=level ) print( TRACE, format( format, arg ) );
+    }
+
+    public static void trace( String format, Object arg1, Object arg2 )
+    {
+        if ( TRACE>=level ) print( TRACE, format( format, arg1, arg2 ) );
+    }
+
+    public static void trace( String format, long arg )
+    {
+        if ( TRACE>=level ) print( TRACE, format( format, arg ) );
+    }
+
+    public static void trace( String format, long arg1, long arg2 )
+    {
+        if ( TRACE>=level ) print( TRACE, format( format, arg1, arg2 ) );
+    }
+
+    public static void trace( String format, Object... args )
+    {
+        if ( TRACE>=level ) print( TRACE, format( format, args ) );
+    }
+
+    public static void debug( String msg )
+    {
+        if ( DEBUG>=level ) print( DEBUG, msg );
+    }
+
+    public static void debug( String format, Object arg )
+    {
+        if ( DEBUG>=level ) print( DEBUG, format( format, arg ) );
+    }
+
+    public static void debug( String format, Object arg1, Object arg2 )
+    {
+        if ( DEBUG>=level ) print( DEBUG, format( format, arg1, arg2 ) );
+    }
+
+    public static void debug( String format, long arg )
+    {
+        if ( DEBUG>=level ) print( DEBUG, format( format, arg ) );
+    }
+
+    public static void debug( String format, long arg1, long arg2 )
+    {
+        if ( DEBUG>=level ) print( DEBUG, format( format, arg1, arg2 ) );
+    }
+
+    public static void debug( String format, Object... args )
+    {
+        if ( DEBUG>=level ) print( DEBUG, format( format, args ) );
+    }
+
+    public static void info( String format, Object... args )
+    {
+        if ( INFO>=level ) print( INFO, format( format, args ) );
+    }
+
+    public static void warn( String format, Object... args )
+    {
+        if ( WARN>=level ) print( WARN, format( format, args ) );
+    }
+
+    public static void error( String format, Object... args )
+    {
+        if ( ERROR>=level ) print( ERROR, format( format, args ) );
+    }
+
+    static void print( int l, String msg )
+    {
+        if ( l>=WARN )
+            System.err.println( msg );
+        else if ( l==INFO )
+            System.out.println( msg );
+        else
+            Debug.out.println( msg );
+    }
+
+    /**
+     * Replaces the placeholders of the format with the arguments.
+     * @param format
+     * @param args
+     * @return
+     */
+    public static String format( String format, Object... args )
+    {
+        if ( args==null || args.length==0 )
+            return format;
+
+        StringBuilder sb = new StringBuilder( format.length()+16*args.length );
+        int a = 0;
+        for ( int i=0; i<format.length(); i++ )
+        {
+            char c = format.charAt( i );
+            if ( c=='{' && a<args.length )
+            {
+                if ( format.startsWith( "{}", i ) )
+                {
+                    sb.append( args[a++] );
+                    i += 1;
+                    continue;
+                }
+                if ( format.startsWith( "{x}", i ) )
+                {
+                    Object arg = args[a++];
+                    if ( arg instanceof Integer )
+                        sb.append( Integer.toHexString( (Integer)arg ) );
+                    else if ( arg instanceof Number )
+                        sb.append( Long.toHexString( ((Number)arg).longValue() ) );
+                    else
+                        sb.append( arg );
+                    i += 2;
+                    continue;
+                }
+            }
+            sb.append( c );
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * BaseTests.java // com.fluidops
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import com.fluidops.tools.vmfs.ExtentIOAccessTest;
+import com.fluidops.tools.vmfs.MappedIOAccessTest;
+import com.fluidops.tools.vmfs.NativeStructTest;
+import com.fluidops.tools.vmfs.PointerBlockTest;
+
+/**
+ * All unit tests, run by the junit target of the build.
+ * 
+ * @author Uli
+ */
+public class BaseTests
+{
+    public static Test suite()
+    {
+        TestSuite suite = new TestSuite( "fvmfs" );
+        suite.addTestSuite( ExtentIOAccessTest.class );
+        suite.addTestSuite( MappedIOAccessTest.class );
+        suite.addTestSuite( NativeStructTest.class );
+        suite.addTestSuite( PointerBlockTest.class );
+        return suite;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * ExtentIOAccessTest.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import com.fluidops.tools.vmfs.VMFSDriver.ExtentInfo;
+
+/**
+ * Reads of a volume spanning two extents.
+ * 
+ * @author Uli
+ */
+public class ExtentIOAccessTest extends TestCase
+{
+    static final long SEG = VMFSDriver.LVM_SEGMENT_SIZE;
+    
+    /**
+     * Start of the volume data on an extent device
+     */
+    static final long DATA = 0x100000L + 0x1000000L;
+    
+    /**
+     * An extent device holding the VMFS headers and a data pattern
+     * derived from the position in the volume, nothing is stored.
+     */
+    static class PatternDevice extends IOAccess
+    {
+        byte[] header = new byte[ 0x800 ];
+        long firstSegment;
+        long size;
+        long pos;
+        
+        PatternDevice( int firstSegment, int segments ) throws Exception
+        {
+            this.firstSegment = firstSegment;
+            size = DATA + segments*SEG;
+            
+            NativeStruct vi = NativeStruct.forType( VMFSDriver.VolumeInfo.class );
+            setInt( vi, 0, "magic", 0xc001d00d );
+            NativeStruct lvm = NativeStruct.forType( VMFSDriver.LVMInfo.class );
+            setLong( lvm, 0x200, "size", 2*SEG );
+            setInt( lvm, 0x200, "numberOfSegments", segments );
+            setInt( lvm, 0x200, "firstSegment", firstSegment );
+            setInt( lvm, 0x200, "lastSegment", firstSegment+segments-1 );
+            setInt( lvm, 0x200, "numberOfExtents", 2 );
+        }
+        
+        void setInt( NativeStruct ns, int base, String field, int v )
+        {
+            ByteBuffer.wrap( header ).order( java.nio.ByteOrder.LITTLE_ENDIAN )
+                .putInt( base+ns.fieldArray[ ns.fieldIndex( field ) ].pos, v );
+        }
+        
+        void setLong( NativeStruct ns, int base, String field, long v )
+        {
+            ByteBuffer.wrap( header ).order( java.nio.ByteOrder.LITTLE_ENDIAN )
+                .putLong( base+ns.fieldArray[ ns.fieldIndex( field ) ].pos, v );
+        }
+        
+        @Override
+        public int read( long p, byte[] buffer, int offset, int len )
+        {
+            if ( p>=size )
+                return -1;
+            len = (int)Math.min( len, size-p );
+            for ( int i=0; i<len; i++ )
+            {
+                long d = p+i;
+                if ( d>=0x100000L && d<0x100000L+header.length )
+                    buffer[offset+i] = header[ (int)(d-0x100000L) ];
+                else if ( d>=DATA )
+                    buffer[offset+i] = pattern( firstSegment*SEG + d-DATA );
+                else
+                    buffer[offset+i] = 0;
+            }
+            return len;
+        }
+        
+        @Override
+        public int read( byte[] buffer, int offset, int len )
+        {
+            int res = read( pos, buffer, offset, len );
+            if ( res>0 )
+                pos += res;
+            return res;
+        }
+        
+        @Override
+        public long getPosition()
+        {
+            return pos;
+        }
+        
+        @Override
+        public void setPosition( long pos )
+        {
+            this.pos = pos;
+        }
+        
+        @Override
+        public long getSize()
+        {
+            return size;
+        }
+        
+        @Override
+        public void setSize( long newSize )
+        {
+        }
+        
+        @Override
+        public void write( byte[] buffer, int offset, int len ) throws IOException
+        {
+            throw new IOException("Readonly mode");
+        }
+        
+        @Override
+        public void close()
+        {
+        }
+    }
+    
+    static byte pattern( long volumePos )
+    {
+        return (byte)(volumePos ^ (volumePos>>>8) ^ (volumePos>>>28)*37);
+    }
+    
+    VMFSDriver driver;
+    IOAccess volume;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        driver = new VMFSDriver();
+        driver.extents = new ArrayList<ExtentInfo>();
+        driver.extents.add( new ExtentInfo( new PatternDevice( 0, 1 ) ) );
+        driver.extents.add( new ExtentInfo( new PatternDevice( 1, 1 ) ) );
+        volume = driver.new ExtentIOAccess();
+    }
+    
+    void check( long pos, byte[] b, int offset, int len )
+    {
+        for ( int i=0; i<len; i++ )
+            assertEquals( "Byte @"+(pos+i), pattern( pos+i ), b[offset+i] );
+    }
+    
+    public void testReadWithinExtent() throws IOException
+    {
+        byte[] b = new byte[ 8192 ];
+        assertEquals( b.length, volume.read( SEG+4096, b, 0, b.length ) );
+        check( SEG+4096, b, 0, b.length );
+    }
+    
+    public void testReadAcrossExtents() throws IOException
+    {
+        long pos = SEG-5000;
+        byte[] b = new byte[ 12000 ];
+        assertEquals( 11000, volume.read( pos, b, 1000, 11000 ) );
+        check( pos, b, 1000, 11000 );
+    }
+    
+    public void testByteBufferReadAcrossExtents() throws IOException
+    {
+        long pos = SEG-3;
+        ByteBuffer bb = ByteBuffer.allocateDirect( 70000 );
+        bb.position( 7 );
+        bb.limit( 7+65536 );
+        assertEquals( 65536, volume.read( pos, bb ) );
+        assertEquals( 7+65536, bb.position() );
+        assertEquals( 7+65536, bb.limit() );
+        
+        byte[] b = new byte[ 65536 ];
+        bb.position( 7 );
+        bb.get( b );
+        check( pos, b, 0, b.length );
+    }
+    
+    public void testUncachedReadBypassesBlockCache() throws Exception
+    {
+        driver.extents.clear();
+        driver.extents.add( new ExtentInfo( new CachedIOAccess( new PatternDevice( 0, 1 ), 4096, 64, false ) ) );
+        driver.extents.add( new ExtentInfo( new CachedIOAccess( new PatternDevice( 1, 1 ), 4096, 64, false ) ) );
+        VMFSDriver.ExtentIOAccess vol = driver.new ExtentIOAccess();
+        CachedIOAccess cache = (CachedIOAccess)driver.extents.get( 0 ).rf;
+        long misses = cache.getMisses();
+        
+        byte[] b = new byte[ 2048 ];
+        assertEquals( b.length, vol.read( 8192, b, 0, b.length, false ) );
+        check( 8192, b, 0, b.length );
+        ByteBuffer bb = ByteBuffer.allocate( 1024 );
+        assertEquals( 1024, vol.read( 16384, bb, false ) );
+        check( 16384, bb.array(), 0, 1024 );
+        assertEquals( misses, cache.getMisses() );
+        
+        assertEquals( b.length, vol.read( 8192, b, 0, b.length ) );
+        check( 8192, b, 0, b.length );
+        assertEquals( misses+1, cache.getMisses() );
+    }
+    
+    public void testReadAtEndOfVolume() throws IOException
+    {
+        byte[] b = new byte[ 100 ];
+        assertEquals( 10, volume.read( 2*SEG-10, b, 0, b.length ) );
+        check( 2*SEG-10, b, 0, 10 );
+    }
+}
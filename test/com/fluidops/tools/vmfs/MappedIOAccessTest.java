@@ -0,0 +1,76 @@
+/*
+ * MappedIOAccessTest.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Size probing of devices that report no size.
+ * 
+ * @author Uli
+ */
+public class MappedIOAccessTest extends TestCase
+{
+    File file;
+    RandomAccessFile raf;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile( "mapped", ".img" );
+        raf = new RandomAccessFile( file, "rw" );
+    }
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        raf.close();
+        file.delete();
+    }
+    
+    long probe( long size ) throws Exception
+    {
+        raf.setLength( size );
+        return MappedIOAccess.probeSize( raf.getChannel() );
+    }
+    
+    public void testProbeSize() throws Exception
+    {
+        assertEquals( 0, probe( 0 ) );
+        assertEquals( 1, probe( 1 ) );
+        assertEquals( 512, probe( 512 ) );
+        assertEquals( 513, probe( 513 ) );
+        assertEquals( 1048576, probe( 1048576 ) );
+        assertEquals( 12345679, probe( 12345679 ) );
+    }
+    
+    public void testMapping() throws Exception
+    {
+        raf.setLength( 10000 );
+        raf.seek( 9999 );
+        raf.write( 42 );
+        
+        MappedIOAccess io = new MappedIOAccess( file.getPath(), 4096, 2 );
+        try
+        {
+            assertEquals( 10000, io.getSize() );
+            byte[] b = new byte[ 10 ];
+            assertEquals( 1, io.read( 9999, b, 0, b.length ) );
+            assertEquals( 42, b[0] );
+            assertEquals( -1, io.read( 10000, b, 0, b.length ) );
+        }
+        finally
+        {
+            io.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * NativeStructTest.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.fluidops.tools.vmfs.NativeStruct.FieldInfo;
+
+/**
+ * Generated decoders against decoding by reflection.
+ * 
+ * @author Uli
+ */
+public class NativeStructTest extends TestCase
+{
+    static final Class<?>[] TYPES = {
+        VMFSDriver.VolumeInfo.class,
+        VMFSDriver.LVMInfo.class,
+        VMFSDriver.FSInfo.class,
+        VMFSDriver.HeartbeatRecord.class,
+        VMFSDriver.FileRecord.class,
+        VMFSDriver.FileMetaHeader.class,
+        VMFSDriver.FileMetaRecord.class,
+        VMFSDriver.RDMMetaRecord.class,
+        VMFSDriver.BitmapMetaHeader.class,
+        VMFSDriver.BitmapHeader.class,
+        AllKinds.class,
+    };
+    
+    public static class AllKinds
+    {
+        public byte b;
+        public short s;
+        public int i__0x10;
+        public long l;
+        public float f;
+        public double d;
+        public byte[] bytes__5;
+        public String str__40_0x100;
+        public VMFSDriver.UUID uuid;
+    }
+    
+    static class Hidden
+    {
+        public int a;
+        public long b;
+    }
+    
+    NativeStruct reflective( Class<?> type )
+    {
+        boolean r = NativeStruct.reflection;
+        NativeStruct.reflection = true;
+        try
+        {
+            return new NativeStruct( type );
+        }
+        finally
+        {
+            NativeStruct.reflection = r;
+        }
+    }
+    
+    static void assertSameFields( NativeStruct ns, Object expected, Object actual ) throws Exception
+    {
+        for ( FieldInfo fi : ns.fieldArray )
+        {
+            Object e = fi.field.get( expected );
+            Object a = fi.field.get( actual );
+            if ( fi.kind==NativeStruct.KIND_STRUCT )
+                assertSameFields( fi.struct, e, a );
+            else if ( fi.kind==NativeStruct.KIND_BYTES )
+                assertTrue( fi.toString(), Arrays.equals( (byte[])e, (byte[])a ) );
+            else
+                assertEquals( fi.toString(), e, a );
+        }
+    }
+    
+    public void testGeneratedDecoders() throws Exception
+    {
+        Random rnd = new Random( 1 );
+        for ( Class<?> type : TYPES )
+        {
+            NativeStruct ns = NativeStruct.forType( type );
+            assertNotNull( "Decoder of "+type, ns.decoder );
+            NativeStruct rs = reflective( type );
+            assertNull( rs.decoder );
+            
+            byte[] b = new byte[ ns.getSize()+100 ];
+            for ( int n=0; n<20; n++ )
+            {
+                rnd.nextBytes( b );
+                int ofs = rnd.nextInt( 100 );
+                Object expected = rs.newInstance();
+                rs.decode( expected, b, ofs );
+                Object actual = ns.newInstance();
+                ns.decode( actual, b, ofs );
+                assertSameFields( ns, expected, actual );
+                
+                ByteBuffer bb = ByteBuffer.allocateDirect( b.length );
+                bb.put( b );
+                actual = ns.newInstance();
+                ns.decode( actual, bb, ofs );
+                assertSameFields( ns, expected, actual );
+                assertEquals( b.length, bb.position() );
+            }
+        }
+    }
+    
+    public void testNonPublicTypeFallsBack() throws Exception
+    {
+        NativeStruct ns = NativeStruct.forType( Hidden.class );
+        assertNull( ns.decoder );
+        
+        byte[] b = new byte[ 12 ];
+        ByteBuffer.wrap( b ).order( java.nio.ByteOrder.LITTLE_ENDIAN ).putInt( 0x12345678 ).putLong( -2L );
+        Hidden h = new Hidden();
+        ns.decode( h, b, 0 );
+        assertEquals( 0x12345678, h.a );
+        assertEquals( -2L, h.b );
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * PointerBlockTest.java // com.fluidops.tools.vmfs
+ *
+ * Copyright (C) by Fluid Operations.
+ * All rights reserved.
+ *
+ * For more information go to http://www.fluidops.com
+ */
+package com.fluidops.tools.vmfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+/**
+ * Resolution of the pointer blocks of large files into extent maps.
+ * 
+ * @author Uli
+ */
+public class PointerBlockTest extends TestCase
+{
+    static final int PTR_SIZE = 0x40000;
+    static final int PER_PTR = PTR_SIZE/4;
+    static final int BLOCK_SIZE = 1024*1024;
+    
+    /**
+     * The pointer block file in memory.
+     */
+    static class MemoryDevice extends IOAccess
+    {
+        byte[] data;
+        long pos;
+        
+        MemoryDevice( int size )
+        {
+            data = new byte[ size ];
+        }
+        
+        @Override
+        public int read( long p, byte[] buffer, int offset, int len )
+        {
+            if ( p>=data.length )
+                return -1;
+            len = (int)Math.min( len, data.length-p );
+            System.arraycopy( data, (int)p, buffer, offset, len );
+            return len;
+        }
+        
+        @Override
+        public int read( byte[] buffer, int offset, int len )
+        {
+            int res = read( pos, buffer, offset, len );
+            if ( res>0 )
+                pos += res;
+            return res;
+        }
+        
+        @Override
+        public long getPosition()
+        {
+            return pos;
+        }
+        
+        @Override
+        public void setPosition( long pos )
+        {
+            this.pos = pos;
+        }
+        
+        @Override
+        public long getSize()
+        {
+            return data.length;
+        }
+        
+        @Override
+        public void setSize( long newSize )
+        {
+        }
+        
+        @Override
+        public void write( byte[] buffer, int offset, int len ) throws IOException
+        {
+            throw new IOException("Readonly mode");
+        }
+        
+        @Override
+        public void close()
+        {
+        }
+    }
+    
+    VMFSDriver driver;
+    MemoryDevice pbc;
+    
+    @Override
+    protected void setUp() throws Exception
+    {
+        // One bitmap area of 16 pointer blocks behind a 0x800 byte header
+        pbc = new MemoryDevice( 0x800 + 0x400 + 16*PTR_SIZE );
+        ByteBuffer bb = ByteBuffer.wrap( pbc.data ).order( ByteOrder.LITTLE_ENDIAN );
+        bb.putInt( 16 );                // blocks
+        bb.putInt( 1 );                 // count
+        bb.putInt( 0x800 );             // headerSize
+        bb.putInt( PTR_SIZE );          // dataSize
+        bb.putInt( 0x400+16*PTR_SIZE ); // areaSize
+        bb.putInt( 16 );                // itemCount
+        bb.putInt( 1 );                 // areaCount
+        
+        driver = new VMFSDriver();
+        driver.blockSize = BLOCK_SIZE;
+        driver.pbc = pbc;
+        driver.pbcBmp = driver.new BitmappedBlockAllocation( pbc );
+    }
+    
+    static int pointerBlockId( int subgroup )
+    {
+        return (subgroup<<28) | 3;
+    }
+    
+    static int fullBlockId( int number )
+    {
+        return (number<<6) | 1;
+    }
+    
+    /**
+     * Fills pointer block n with full blocks, every 7th entry stays sparse.
+     * @return The ID of the pointer block
+     */
+    int addPointerBlock( int n )
+    {
+        int id = pointerBlockId( n );
+        ByteBuffer bb = ByteBuffer.wrap( pbc.data ).order( ByteOrder.LITTLE_ENDIAN );
+        bb.position( (int)driver.getPointerBlockAddress( id ) );
+        for ( int e=0; e<PER_PTR; e++ )
+            bb.putInt( e%7==3 ? 0 : fullBlockId( n*PER_PTR+e ) );
+        return id;
+    }
+    
+    /**
+     * Returns the device position of the block, or -1 if it is sparse.
+     */
+    long expected( int[] ptrTab, long block )
+    {
+        int id = ptrTab[ (int)(block/PER_PTR) ];
+        int e = (int)(block%PER_PTR);
+        if ( id==0 || e%7==3 )
+            return -1;
+        return (long)(VMFSDriver.BlockID.getSubgroup( id )*PER_PTR+e) * BLOCK_SIZE;
+    }
+    
+    long physical( ExtentMap map, long pos )
+    {
+        int e = map.find( pos );
+        assertTrue( "No extent @"+pos, e>=0 );
+        if ( map.getKind( e )==ExtentMap.KIND_SPARSE )
+            return -1;
+        assertEquals( ExtentMap.KIND_FULL, map.getKind( e ) );
+        return map.getPhysical( e ) + pos-map.getStart( e );
+    }
+    
+    VMFSDriver.FileMetaInfo fileWithPointers( int[] ptrTab )
+    {
+        VMFSDriver.FileMetaInfo fmi = driver.new FileMetaInfo();
+        fmi.blockTab = ptrTab;
+        fmi.ptrTab = ptrTab;
+        return fmi;
+    }
+    
+    public void testResolveInBatches() throws IOException
+    {
+        // More pointer blocks than read at once, with null entries between them
+        int[] ptrTab = new int[ 13 ];
+        int n = 0;
+        for ( int i : new int[] { 0, 1, 3, 4, 5, 6, 9, 10, 11, 12 } )
+            ptrTab[i] = addPointerBlock( n++ );
+        
+        VMFSDriver.FileMetaInfo fmi = fileWithPointers( ptrTab );
+        ExtentMap map = fmi.getExtentMap();
+        assertEquals( (long)ptrTab.length*PER_PTR*BLOCK_SIZE, map.getSize() );
+        assertSame( ptrTab, fmi.blockTab );
+        
+        // The per pointer block maps of the lazy path agree
+        VMFSDriver.FileMetaInfo lazy = fileWithPointers( ptrTab );
+        for ( long b=0; b<(long)ptrTab.length*PER_PTR; b++ )
+        {
+            long pos = b*BLOCK_SIZE;
+            long phys = expected( ptrTab, b );
+            assertEquals( "Block "+b, phys, physical( map, pos ) );
+            assertEquals( "Block "+b, phys, physical( lazy.getExtentMap( pos ), pos ) );
+        }
+    }
+    
+    public void testEntryNeitherNullNorPointerBlock() throws IOException
+    {
+        int[] ptrTab = { addPointerBlock( 0 ), 0, fullBlockId( 5 ), addPointerBlock( 1 ) };
+        
+        try
+        {
+            fileWithPointers( ptrTab ).getExtentMap();
+            fail( "Full block in the pointer block table resolved" );
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        
+        VMFSDriver.FileMetaInfo lazy = fileWithPointers( ptrTab );
+        try
+        {
+            lazy.getExtentMap( 2L*PER_PTR*BLOCK_SIZE );
+            fail( "Full block in the pointer block table resolved" );
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        
+        // The valid entries still map on the lazy path
+        assertEquals( -1, physical( lazy.getExtentMap( (long)PER_PTR*BLOCK_SIZE ), (long)PER_PTR*BLOCK_SIZE ) );
+        assertEquals( (long)BLOCK_SIZE, physical( lazy.getExtentMap( BLOCK_SIZE ), BLOCK_SIZE ) );
+    }
+}